@@ -1,17 +1,24 @@
 package com.example.bluetooth;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 import android.widget.Toast;
@@ -28,9 +35,9 @@ import android.widget.Toast;
 
 public class BluetoothService {
 
-	//Debbugging: enable D for debugging mode
+	//Debbugging: D follows the build type, EventTrace records the timeline
 	private static final String tag = "BlutoothService";
-	private static final Boolean D = true;
+	private static final boolean D = BuildConfig.DEBUG;
 	
 	private BluetoothAdapter adapter;
 	private AcceptThread acceptThread;
@@ -38,6 +45,46 @@ public class BluetoothService {
 	private ConnectedThread connectedThread;
 	private Handler handler;
 	private int state;
+	private final RpcChannel rpc = new RpcChannel(this);
+	
+	//Relay mode: every direct link is kept, not only connectedThread
+	private final CopyOnWriteArrayList<ConnectedThread> links = new CopyOnWriteArrayList<ConnectedThread>();
+	private final RelayRouter router;
+	private volatile boolean relay;
+	
+	//Limits for the per connection LinkTuner
+	private final SharedPreferences tuningPrefs;
+	private int minChunk = 128;
+	private int maxChunk = 8 * 1024;
+	private int minReadBuffer = 256;
+	private int maxReadBuffer = 16 * 1024;
+	
+	//Topics of incoming data to deliver, the rest is skipped unread
+	private final TopicFilter subscriptions = new TopicFilter();
+	private volatile boolean pushSubscriptions;
+	
+	//Streaming mode: incoming samples go here instead of the Handler
+	private volatile SampleRingBuffer sampleRing;
+	
+	//Clock synchronization with the peers, and sender timestamps on data
+	private static final long SYNC_INTERVAL_MS = 10000;
+	private static final long SYNC_FAST_MS = 250;
+	private static final int SYNC_FAST_ROUNDS = 4;
+	private HandlerThread syncThread;
+	private Handler syncHandler;
+	private volatile boolean timestamps;
+	
+	//Capture of the raw traffic, for TrafficReplayer
+	private volatile TrafficRecorder recorder;
+	
+	//Server socket opened ahead of start() by prepare(), guarded by this
+	private BluetoothServerSocket preparedSocket;
+	
+	//Large data sent as chunks the peer does not have yet
+	private volatile boolean dedup;
+	
+	//Rate limited, fair sharing of the link between producers
+	private final OutboundScheduler scheduler = new OutboundScheduler(this);
 	
 	// Unique UUID for this app, generated by uuidenerator.net 
 	public static final String NAME = "Bluetooth";
@@ -57,7 +104,9 @@ public class BluetoothService {
 	public BluetoothService(Context context,Handler handler){
 	//public BluetoothService(Context context, Handler handler){
 		this.handler = handler;
+		this.tuningPrefs = context.getSharedPreferences(LinkTuner.PREFS_NAME, Context.MODE_PRIVATE);
 		this.adapter = BluetoothAdapter.getDefaultAdapter();
+		this.router = new RelayRouter(this, adapter.getAddress());
 		setState(STATE_NOCONNECTION);
 	}
 	
@@ -68,6 +117,7 @@ public class BluetoothService {
 	 */
 	private synchronized void setState (int state){
 		
+		EventTrace.event(EventTrace.STATE, this.state, state);
 		if(D) Log.d(tag,"state: " + this.state + "->" + state);
 		
 		this.state = state;
@@ -80,12 +130,68 @@ public class BluetoothService {
 		return this.state;
 	}
 	
+	/**
+	 * Device address as a number for EventTrace, 0 when not tracing.
+	 * Read digit by digit: recording builds no strings.
+	 */
+	private static long traceAddress(BluetoothDevice device){
+		if(!EventTrace.isEnabled()) return 0;
+		
+		String address = device.getAddress();
+		long value = 0;
+		for(int i = 0; i < address.length(); i++){
+			int digit = Character.digit(address.charAt(i), 16);
+			if(digit >= 0) value = (value << 4) | digit;
+		}
+		return value;
+	}
+	
+	/**
+	 * Open the listening server socket ahead of start(), which then only
+	 * has to hand it to the AcceptThread. Blocks on the Bluetooth stack:
+	 * call it off the main thread.
+	 */
+	public void prepare(){
+		
+		synchronized(this){
+			if(preparedSocket != null || acceptThread != null) return;
+		}
+		
+		BluetoothServerSocket tmp;
+		try{
+			tmp = adapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID);
+		}catch(IOException e){
+			Log.e(tag,"listen() failed",e);
+			return;
+		}
+		
+		synchronized(this){
+			//start() got there first
+			if(preparedSocket != null || acceptThread != null){
+				closeServerSocket(tmp);
+				return;
+			}
+			preparedSocket = tmp;
+		}
+	}
+	
+	
+	private static void closeServerSocket(BluetoothServerSocket socket){
+		try{
+			socket.close();
+		}catch(IOException e){
+			Log.e(tag,"close() of server failed",e);
+		}
+	}
+	
+	
 	/**
 	 * Start the BluetoothService. Start AcceptThread to begin LISTENING MODE.
 	 * Called by the Activity onResume()
 	 */
 	public synchronized void start(){
 		
+		EventTrace.event(EventTrace.START, 0, 0);
 		if(D) Log.d(tag,"Start");
 		
 		//Cancel any thread attempting to make a connection
@@ -95,10 +201,10 @@ public class BluetoothService {
 		}
 		
 		//Cancel any thread currently running a connection
-		if(connectedThread != null){
-			connectedThread.cancel();
-			connectedThread = null;
-		}
+		cancelLinks();
+		
+		//Relay mode outlives stop(), which stopped the router
+		if(relay) router.start();
 		
 		//Start the thread to listen on a BluetoothServerSocket
 		if(acceptThread==null){
@@ -114,18 +220,17 @@ public class BluetoothService {
 	 */
 	public synchronized void connect(BluetoothDevice device){
 		
+		EventTrace.event(EventTrace.CONNECT, traceAddress(device), 0);
 		if(D) Log.d(tag,"Connect to: " + device.getName());
 		
 		//Cancel any thread attempting to make a connection
-		if(state == STATE_CONNECTING){	
-			if(connectThread != null){
-				connectThread.cancel();
-				connectThread = null;
-			}
+		if(connectThread != null){
+			connectThread.cancel();
+			connectThread = null;
 		}
 		
-		//Cancel any thread currently running a connection
-		if(connectedThread != null){
+		//Cancel any thread currently running a connection, relay nodes keep them
+		if(connectedThread != null && !relay){
 			connectedThread.cancel();
 			connectedThread = null;
 		}
@@ -133,7 +238,18 @@ public class BluetoothService {
 		//Start the thread to connect with the give device
 		connectThread = new ConnectThread(device);
 		connectThread.start();
-		setState(STATE_CONNECTING);
+		
+		//Relay links stay usable while dialing another neighbour
+		if(!keepLinks()) setState(STATE_CONNECTING);
+	}
+	
+	
+	/**
+	 * Relay node with live links: dials come and go without touching
+	 * the state of the service
+	 */
+	private synchronized boolean keepLinks(){
+		return relay && !links.isEmpty();
 	}
 	
 	
@@ -143,16 +259,18 @@ public class BluetoothService {
 	public synchronized void connected(BluetoothSocket socket,
 			BluetoothDevice device){
 		
+		EventTrace.event(EventTrace.CONNECTED, traceAddress(device), links.size());
 		if(D) Log.d(tag,"Connected to: " + device.getName());
 		
-		//Cancel the thread that completed the connection
-		if(connectThread != null){
+		//Cancel the thread that completed the connection, relay nodes
+		//accepting a neighbour let their own dial go on
+		if(connectThread != null && !relay){
 			connectThread.cancel();
 			connectThread = null;
 		}
 		
-		//Cancel any thread currently running a connection
-		if(connectedThread != null){
+		//Cancel any thread currently running a connection, relay nodes keep them
+		if(connectedThread != null && !relay){
 			connectedThread.cancel();
 			connectThread = null;
 		}
@@ -160,7 +278,10 @@ public class BluetoothService {
 			
 		//Start the thread to manage the connection and perform data transmissions
 		connectedThread = new ConnectedThread(socket);
+		links.add(connectedThread);
 		connectedThread.start();
+		router.onLinkUp(connectedThread);
+		scheduler.onLinkUp();
 		//Send the name of connected device back to the MainActivity
 		/*Message msg = handler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME);
 		Bundle bundle = new Bundle();
@@ -187,6 +308,7 @@ public class BluetoothService {
 	 */
 	public synchronized void stop(){
 		
+		EventTrace.event(EventTrace.STOP, 0, 0);
 		if(D) Log.d(tag,"stop");
 		
 		if(acceptThread != null){
@@ -197,210 +319,696 @@ public class BluetoothService {
 			connectThread.cancel();
 			connectThread = null;
 		}
-		if(connectedThread != null){
-			connectedThread.cancel();
-			connectedThread = null;
-		}		
+		cancelLinks();
+		if(preparedSocket != null){
+			closeServerSocket(preparedSocket);
+			preparedSocket = null;
+		}
+		router.stop();
+		scheduler.stop();
+		stopRecording();
+		
+		if(syncThread != null){
+			syncThread.quit();
+			syncThread = null;
+			syncHandler = null;
+		}
+		
+		//Outstanding calls will never get their response
+		rpc.close();
 		
 		setState(STATE_NOCONNECTION);
 	}
 	
 	
 	/**
-	 * Write to ConnectedThread (unsynchronized)
+	 * Limits of the write chunk and read buffer sizes the connections
+	 * tune themselves within. Applies to the next connections.
 	 */
-	public void write(byte[]out){
-		//Create temporary object
-		ConnectedThread ct;
-		
-		//synchronize a copy of the connected thread
-		synchronized(this){
-			if(state!=STATE_CONNECTED) return;
-			ct = connectedThread;
+	public synchronized void setTuningLimits(int minChunk, int maxChunk,
+			int minReadBuffer, int maxReadBuffer){
+		this.minChunk = minChunk;
+		this.maxChunk = maxChunk;
+		this.minReadBuffer = minReadBuffer;
+		this.maxReadBuffer = maxReadBuffer;
+	}
+	
+	
+	/**
+	 * Streaming mode, sender side: samples of the given number of float
+	 * channels are sent in batches of batchSize, or sooner when the batch
+	 * is older than maxLatencyMs. A batch must fit in one frame. Close the
+	 * stream when done, it has a timer thread.
+	 */
+	public SampleStream openSampleStream(int channels, int batchSize, long maxLatencyMs){
+		return new SampleStream(this, channels, batchSize, maxLatencyMs);
+	}
+	
+	
+	/**
+	 * Streaming mode, receiver side: incoming samples are decoded on the
+	 * ConnectedThread into a ring of capacity samples, without posting
+	 * anything to the Handler. Samples are dropped while no ring is set.
+	 * capacity must be at least four times the sender batchSize.
+	 */
+	public SampleRingBuffer openSampleRing(int channels, int capacity, int batchSize){
+		if(batchSize < 1 || capacity < 4 * batchSize){
+			throw new IllegalArgumentException("Ring of " + capacity 
+					+ " samples too small for batches of " + batchSize);
 		}
-		
-		ct.write(out);		
+		SampleRingBuffer ring = new SampleRingBuffer(channels, capacity);
+		sampleRing = ring;
+		return ring;
 	}
-
+	
+	
+	public void closeSampleRing(){
+		sampleRing = null;
+	}
+	
 	
 	/**
-	 * Connection attemp failed
+	 * Stamp data and sample frames with the sender clock, so the receiver
+	 * can measure their one-way latency once the clocks are synchronized
 	 */
-	public void connectionFailed(){
-		
-		if (D) Log.d(tag, "Connection Failed");
-				
-		setState(STATE_LISTEN);		
-		
-		//Send a failure message to MainActivity
-		Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(MainActivity.TOAST, "Connection failed");
-		msg.setData(bundle);
-		handler.sendMessage(msg);
-		
+	public void setTimestampsEnabled(boolean enabled){
+		timestamps = enabled;
 	}
-
+	
 	
 	/**
-	 * Connection lost
+	 * Send data of ChunkDedup.THRESHOLD bytes or more deduplicated: the
+	 * chunks the peer got recently go as 16 byte references. Only the
+	 * sender has to enable it.
 	 */
-	public void connectionLost(){
-		
-		if(D) Log.d(tag, "Connection lost");
-		
-		setState(STATE_LISTEN);
-		
-		//Send a failure message to MainActivity
-		/*Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(MainActivity.TOAST, "Unable to connect device");
-		msg.setData(bundle);
-		handler.sendMessage(msg);
-		 */
+	public void setDedupEnabled(boolean enabled){
+		dedup = enabled;
 	}
-
 	
 	
+	/**
+	 * Record every chunk read from and written to the connections, with
+	 * its time, link and direction, into a capture file. Links already
+	 * connected are recorded from their next message boundary.
+	 */
+	public synchronized void startRecording(File file) throws IOException{
+		stopRecording();
+		recorder = new TrafficRecorder(file);
+	}
 	
 	
 	/**
-	 * 	This thread runs while listening for incoming connections. It behaves
-	 *	like a server-side client. It runs until a connection is accepted 
-	 *	or until cancelled.	
-	 * @author alvarolamas
-	 *
+	 * Finish the capture. Returns the records dropped because the file
+	 * could not keep up, or -1 if nothing was being recorded.
 	 */
-	private class AcceptThread extends Thread {
-
-		private final BluetoothServerSocket serverSocket;
-		
+	public synchronized long stopRecording(){
+		TrafficRecorder r = recorder;
+		if(r == null) return -1;
 		
-		/**
-		 * Constuctor AcceptThread
-		 */
-		public AcceptThread(){
-			
-			BluetoothServerSocket tmp = null;
-			
-			//Create a new listening server socket
-			try{				
-				tmp = adapter.listenUsingRfcommWithServiceRecord(BluetoothService.NAME,
-						BluetoothService.MY_UUID);
-			}catch (IOException e){
-				Log.e(tag,"listen() failed",e);			
-			}//Null Pointer Exception
-			this.serverSocket=tmp;
+		recorder = null;
+		r.close();
+		return r.getDroppedCount();
+	}
+	
+	
+	/**
+	 * Feed the inbound side of a capture through the frame dispatch, as
+	 * if each recorded link were connected: data reaches the Main Activity
+	 * like live data. Blocks until the end, call it off the main thread.
+	 */
+	public TrafficReplayer.Result replay(File capture, double speed) throws IOException{
+		return new TrafficReplayer(capture).replay(new TrafficReplayer.Target(){
+			public FrameReader.Listener listener(int link){
+				return new FrameDispatcher(null, new ClockSync());
+			}
+		}, TrafficRecorder.IN, speed);
+	}
+	
+	
+	/**
+	 * Remote System.nanoTime() of the connected device to local time.
+	 * Returns the value unchanged until the clocks are synchronized.
+	 */
+	public long toLocalTime(long remoteNanos){
+		ConnectedThread ct = connectedThread();
+		if(ct == null || !ct.clock.isSynced()) return remoteNanos;
+		return ct.clock.toLocal(remoteNanos);
+	}
+	
+	
+	/**
+	 * Thread running the periodic clock synchronization of every link
+	 */
+	private synchronized Handler syncHandler(){
+		if(syncHandler == null){
+			syncThread = new HandlerThread("ClockSync");
+			syncThread.start();
+			syncHandler = new Handler(syncThread.getLooper());
 		}
+		return syncHandler;
+	}
+	
+	
+	private synchronized void cancelSync(Runnable task){
+		if(syncHandler != null) syncHandler.removeCallbacks(task);
+	}
+	
+	
+	/**
+	 * Connection statistics, one line per value
+	 */
+	public String getDiagnostics(){
 		
+		StringBuilder out = new StringBuilder();
+		out.append("state: ").append(getState()).append('\n');
+		out.append("rpc pending: ").append(rpc.getPendingCount()).append('\n');
 		
-		/**
-		 * Run AcceptThread
-		 */
-		public void run(){
+		for(ConnectedThread link : links){
+			ClockSync clock = link.clock;
+			LatencyHistogram inbound = clock.getInbound();
+			long[] outbound = clock.getOutbound();
 			
-			setName("AcceptThread");
-			
-			if(D) Log.d(tag,"Begin acceptThread " + this);
-						
-			BluetoothSocket socket = null;
+			out.append("link ").append(link.getAddress()).append('\n');
+			out.append("  chunk/read: ").append(link.tuner.getChunkSize())
+				.append('/').append(link.tuner.getReadSize()).append('\n');
+			out.append("  clock offset/rtt us: ").append(clock.getOffset() / 1000)
+				.append('/').append(clock.getRoundTrip() / 1000)
+				.append(", drift ns/s: ").append((long) clock.getDrift()).append('\n');
+			out.append("  in p50/p90/p99 ms: ")
+				.append(millis(inbound.getPercentile(50))).append('/')
+				.append(millis(inbound.getPercentile(90))).append('/')
+				.append(millis(inbound.getPercentile(99)))
+				.append(" (").append(inbound.getCount()).append(")\n");
+			out.append("  out p50/p90/p99 ms: ")
+				.append(millis(outbound[0])).append('/')
+				.append(millis(outbound[1])).append('/')
+				.append(millis(outbound[2])).append('\n');
 			
-			//Listen to server socket if not connected
-			while(state != STATE_CONNECTED){
-				try{
-					socket = serverSocket.accept();
-				}catch(IOException e){
-					Log.e(tag,"Socket closed: accept() failed",e);
-					break;
-				}		
-				
-				
-				//If the connection is accepted
-				if(socket != null){
-					synchronized(BluetoothService.this){
-						switch (state){
-						case STATE_LISTEN:
-						case STATE_CONNECTING:
-							//Start the connected thread
-							connected(socket, socket.getRemoteDevice());
-							break;
-							
-						case STATE_CONNECTED:
-							//Already connected
-						case STATE_NOCONNECTION:
-							//Not ready							
-							//Terminate new socket
-							try{
-								socket.close();
-								if (D) Log.d(tag,"socket.close()");
-							}catch(IOException e){
-								Log.e(tag,"Could not close socket",e);
-							}
-							break;
-						}
-					}
-				}
+			ChunkDedup sent = link.dedupOut;
+			if(sent != null){
+				out.append("  dedup out/wire bytes: ").append(sent.getPlainBytes())
+					.append('/').append(sent.getWireBytes()).append('\n');
 			}
-			if (D) Log.d(tag,"end acceptThread");
 		}
 		
+		if(relay){
+			out.append("relay routes: ").append(router.getRouteCount())
+				.append(", forwarded: ").append(router.getForwardedCount())
+				.append(", dropped: ").append(router.getDroppedCount()).append('\n');
+			out.append("relay hop mean/max ms: ")
+				.append(millis(router.getMeanForwardNanos())).append('/')
+				.append(millis(router.getMaxForwardNanos())).append('\n');
+		}
 		
-		/**
-		 * Cancel AcceptThread
-		 */
-		public void cancel(){
-			
-			if(D) Log.d(tag, "cancel " + this);
-			
-			try{
-				serverSocket.close();
-			}catch(IOException e){
-				Log.e(tag,"close() of server socket failed",e);
-			}
+		for(OutboundScheduler.Producer producer : scheduler.getProducers()){
+			out.append("producer ").append(producer.getName())
+				.append(" sent/queued/throttled: ").append(producer.getSentBytes())
+				.append('/').append(producer.getQueuedBytes())
+				.append('/').append(producer.getThrottledBytes()).append('\n');
 		}
+		
+		SampleRingBuffer ring = sampleRing;
+		if(ring != null){
+			out.append("samples: ").append(ring.getWrittenCount())
+				.append(", lost: ").append(ring.getLostCount()).append('\n');
+		}
+		return out.toString();
 	}
-
 	
 	
+	private static String millis(long nanos){
+		return String.valueOf(nanos / 100000 / 10.0);
+	}
 	
 	
 	/**
-	 * 	This thread runs while attempting to make an outgoing connection
-	 *	with a device. It runs either the connection succeds or fails.
-	 *
+	 * Receive data about this topic. Every topic is subscribed by default.
 	 */
+	public void subscribe(int topic){
+		subscriptions.add(topic);
+		subscriptionsChanged();
+	}
 	
-	private class ConnectThread extends Thread {
-
-		private final BluetoothSocket socket;
-		private final BluetoothDevice device;
-		
+	
+	/**
+	 * Incoming data about this topic is skipped on the ConnectedThread,
+	 * without copying it or posting it to the Handler
+	 */
+	public void unsubscribe(int topic){
+		subscriptions.remove(topic);
+		subscriptionsChanged();
+	}
+	
+	
+	/**
+	 * Receive only data about the given topics
+	 */
+	public void setSubscriptions(int... topics){
+		subscriptions.set(topics);
+		subscriptionsChanged();
+	}
+	
+	
+	public void subscribeAll(){
+		subscriptions.addAll();
+		subscriptionsChanged();
+	}
+	
+	
+	/**
+	 * Also tell the connected devices our subscriptions, so they do not
+	 * send the topics we would skip
+	 */
+	public void setPushSubscriptions(boolean push){
+		pushSubscriptions = push;
 		
-		/**
-		 * Constructor ConnectThread
-		 */
-		public ConnectThread(BluetoothDevice device){
-			
-			this.device = device;			
-			BluetoothSocket tmp = null;
-			
-			//Get a socket for a connection with the given device
-			try{
-				tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-			}catch(IOException e){
-				Log.e(tag,"create() failed",e);
-			}
-			
-			this.socket=tmp;
+		//Turning it off: let the peers send everything again
+		for(ConnectedThread link : links){
+			link.sendSubscriptions(push ? subscriptions : new TopicFilter());
 		}
-		
-		
-		/**
+	}
+	
+	
+	private void subscriptionsChanged(){
+		if(!pushSubscriptions) return;
+		for(ConnectedThread link : links){
+			link.sendSubscriptions(subscriptions);
+		}
+	}
+	
+	
+	/**
+	 * Cancel every ConnectedThread
+	 */
+	private synchronized void cancelLinks(){
+		for(ConnectedThread link : links){
+			link.cancel();
+		}
+		links.clear();
+		connectedThread = null;
+	}
+	
+	
+	/**
+	 * Direct links, more than one only in relay mode
+	 */
+	List<ConnectedThread> getLinks(){
+		return links;
+	}
+	
+	
+	/**
+	 * Relay mode: keep accepting and connecting to several devices and
+	 * forward frames between them, so nodes out of range of each other
+	 * can still talk through sendTo()
+	 */
+	public void setRelayEnabled(boolean enabled){
+		relay = enabled;
+		if(enabled){
+			router.start();
+		}else{
+			router.stop();
+		}
+	}
+	
+	public boolean isRelayEnabled(){
+		return relay;
+	}
+	
+	public RelayRouter getRelayRouter(){
+		return router;
+	}
+	
+	
+	/**
+	 * Send data to any device of the relay network, directly connected
+	 * or not. Returns false if no route is known yet.
+	 */
+	public boolean sendTo(String address, byte[] out){
+		return router.send(address, Frame.TYPE_DATA, out, 0, out.length);
+	}
+	
+	
+	/**
+	 * Open a scheduled source of outbound data. Producers share the link
+	 * in proportion to their quantum (bytes per turn) and can each be
+	 * rate limited. Plain write() calls bypass the scheduler.
+	 */
+	public OutboundScheduler.Producer openProducer(String name, int quantum){
+		return scheduler.openProducer(name, quantum);
+	}
+	
+	
+	public void closeProducer(OutboundScheduler.Producer producer){
+		scheduler.closeProducer(producer);
+	}
+	
+	
+	/**
+	 * Cap the producer traffic to a device, 0 for no limit. Only what
+	 * goes through openProducer() is metered: plain write(), RPC, relay
+	 * and clock sync frames are neither counted nor held back.
+	 */
+	public void setScheduledPeerRate(String address, long bytesPerSecond, int burst){
+		scheduler.setScheduledPeerRate(address, bytesPerSecond, burst);
+	}
+	
+	
+	/**
+	 * Write to ConnectedThread (unsynchronized)
+	 */
+	public void write(byte[]out){
+		write(out, 0, out.length);
+	}
+	
+	
+	/**
+	 * Write length bytes of out starting at offset, without copying them
+	 */
+	public void write(byte[] out, int offset, int length){
+		ConnectedThread ct = connectedThread();
+		if(ct != null) ct.write(out, offset, length);
+	}
+	
+	
+	/**
+	 * Write the remaining bytes of out, without copying heap buffers
+	 */
+	public void write(ByteBuffer out){
+		ConnectedThread ct = connectedThread();
+		if(ct != null) ct.write(out);
+	}
+	
+	
+	/**
+	 * Gather write: the remaining bytes of every buffer go out as a
+	 * single message, e.g. a header and a body kept apart
+	 */
+	public void write(ByteBuffer... out){
+		ConnectedThread ct = connectedThread();
+		if(ct != null) ct.write(out);
+	}
+	
+	
+	/**
+	 * Write data about the given topic (0-255) without copying it.
+	 * Dropped if the peer pushed subscriptions that exclude the topic.
+	 */
+	public void write(int topic, byte[] out, int offset, int length){
+		ConnectedThread ct = connectedThread();
+		if(ct != null) ct.write(topic, out, offset, length);
+	}
+	
+	
+	/**
+	 * Gather write of data about the given topic
+	 */
+	public void write(int topic, ByteBuffer... out){
+		ConnectedThread ct = connectedThread();
+		if(ct != null) ct.write(topic, out);
+	}
+	
+	
+	/**
+	 * Synchronized copy of the connected thread, null if not connected
+	 */
+	ConnectedThread connectedThread(){
+		synchronized(this){
+			if(state!=STATE_CONNECTED) return null;
+			return connectedThread;
+		}
+	}
+	
+	
+	/**
+	 * Write a frame to ConnectedThread (unsynchronized).
+	 * Returns false if there is no connection or the write failed.
+	 */
+	boolean writeFrame(int type, byte[] head, int headLength,
+			byte[] body, int offset, int length){
+		ConnectedThread ct;
+		
+		synchronized(this){
+			if(state!=STATE_CONNECTED) return false;
+			ct = connectedThread;
+		}
+		
+		return ct.writeFrame(type, head, headLength, body, offset, length);
+	}
+	
+	
+	/**
+	 * Send a request to the connected device. Several requests can be in
+	 * flight at once; the callback gets the matching response, or a
+	 * failure on timeout (if timeoutMs > 0), cancel or connection loss.
+	 */
+	public RpcChannel.Call call(byte[] request, long timeoutMs, 
+			RpcChannel.Callback callback){
+		return rpc.call(request, 0, request.length, timeoutMs, callback);
+	}
+	
+	
+	/**
+	 * Send the response to the request with the given id, on the link
+	 * the request came from
+	 */
+	public boolean reply(int id, byte[] response){
+		return rpc.reply(id, response, 0, response.length);
+	}
+	
+	
+	/**
+	 * Set the handler serving requests from the connected device
+	 */
+	public void setRequestHandler(RpcChannel.RequestHandler requestHandler){
+		rpc.setRequestHandler(requestHandler);
+	}
+
+	
+	/**
+	 * Connection attemp failed
+	 */
+	public void connectionFailed(){
+		
+		EventTrace.event(EventTrace.CONNECTION_FAILED, 0, 0);
+		if (D) Log.d(tag, "Connection Failed");
+				
+		if(!keepLinks()) setState(STATE_LISTEN);		
+		
+		//Send a failure message to MainActivity
+		Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
+		Bundle bundle = new Bundle();
+		bundle.putString(MainActivity.TOAST, "Connection failed");
+		msg.setData(bundle);
+		handler.sendMessage(msg);
+		
+	}
+
+	
+	/**
+	 * A ConnectedThread ended. In relay mode the connection is only lost
+	 * when the last link goes away.
+	 */
+	private void linkLost(ConnectedThread link){
+		
+		links.remove(link);
+		router.onLinkDown(link);
+		rpc.onLinkDown(link);
+		
+		synchronized(this){
+			//Cancelled by start(), stop() or a new connection
+			if(link != connectedThread) return;
+			
+			if(!links.isEmpty()){
+				connectedThread = links.get(links.size() - 1);
+				return;
+			}
+			connectedThread = null;
+		}
+		connectionLost();
+	}
+	
+	
+	/**
+	 * Connection lost
+	 */
+	public void connectionLost(){
+		
+		EventTrace.event(EventTrace.CONNECTION_LOST, 0, 0);
+		if(D) Log.d(tag, "Connection lost");
+		
+		setState(STATE_LISTEN);
+		
+		//Responses of outstanding calls died with the connection
+		rpc.failAll(RpcChannel.FAILURE_CONNECTION_LOST);
+		
+		//Send a failure message to MainActivity
+		/*Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
+		Bundle bundle = new Bundle();
+		bundle.putString(MainActivity.TOAST, "Unable to connect device");
+		msg.setData(bundle);
+		handler.sendMessage(msg);
+		 */
+	}
+
+	
+	
+	
+	
+	/**
+	 * 	This thread runs while listening for incoming connections. It behaves
+	 *	like a server-side client. It runs until a connection is accepted 
+	 *	or until cancelled.	
+	 * @author alvarolamas
+	 *
+	 */
+	private class AcceptThread extends Thread {
+
+		private final BluetoothServerSocket serverSocket;
+		
+		
+		/**
+		 * Constuctor AcceptThread
+		 */
+		public AcceptThread(){
+			
+			//Socket opened in the background by prepare(), if any
+			BluetoothServerSocket tmp;
+			synchronized(BluetoothService.this){
+				tmp = preparedSocket;
+				preparedSocket = null;
+			}
+			
+			//Create a new listening server socket
+			if(tmp == null){
+				try{				
+					tmp = adapter.listenUsingRfcommWithServiceRecord(BluetoothService.NAME,
+							BluetoothService.MY_UUID);
+				}catch (IOException e){
+					Log.e(tag,"listen() failed",e);			
+				}//Null Pointer Exception
+			}
+			this.serverSocket=tmp;
+		}
+		
+		
+		/**
+		 * Run AcceptThread
+		 */
+		public void run(){
+			
+			setName("AcceptThread");
+			
+			EventTrace.event(EventTrace.ACCEPT_BEGIN, getId(), 0);
+			if(D) Log.d(tag,"Begin acceptThread " + this);
+						
+			BluetoothSocket socket = null;
+			StartupTimer.mark(StartupTimer.ACCEPT_READY);
+			
+			//Listen to server socket if not connected, relay nodes always listen
+			while(state != STATE_CONNECTED || relay){
+				try{
+					socket = serverSocket.accept();
+				}catch(IOException e){
+					Log.e(tag,"Socket closed: accept() failed",e);
+					break;
+				}		
+				
+				
+				//If the connection is accepted
+				if(socket != null){
+					synchronized(BluetoothService.this){
+						switch (state){
+						case STATE_LISTEN:
+						case STATE_CONNECTING:
+							//Start the connected thread
+							connected(socket, socket.getRemoteDevice());
+							break;
+							
+						case STATE_CONNECTED:
+							//Relay nodes accept more neighbours
+							if(relay){
+								connected(socket, socket.getRemoteDevice());
+								break;
+							}
+							//Already connected
+						case STATE_NOCONNECTION:
+							//Not ready							
+							//Terminate new socket
+							try{
+								socket.close();
+								if (D) Log.d(tag,"socket.close()");
+							}catch(IOException e){
+								Log.e(tag,"Could not close socket",e);
+							}
+							break;
+						}
+					}
+				}
+			}
+			EventTrace.event(EventTrace.ACCEPT_END, getId(), 0);
+			if (D) Log.d(tag,"end acceptThread");
+		}
+		
+		
+		/**
+		 * Cancel AcceptThread
+		 */
+		public void cancel(){
+			
+			EventTrace.event(EventTrace.CANCEL, getId(), 0);
+			if(D) Log.d(tag, "cancel " + this);
+			
+			try{
+				serverSocket.close();
+			}catch(IOException e){
+				Log.e(tag,"close() of server socket failed",e);
+			}
+		}
+	}
+
+	
+	
+	
+	
+	/**
+	 * 	This thread runs while attempting to make an outgoing connection
+	 *	with a device. It runs either the connection succeds or fails.
+	 *
+	 */
+	
+	private class ConnectThread extends Thread {
+
+		private final BluetoothSocket socket;
+		private final BluetoothDevice device;
+		
+		
+		/**
+		 * Constructor ConnectThread
+		 */
+		public ConnectThread(BluetoothDevice device){
+			
+			this.device = device;			
+			BluetoothSocket tmp = null;
+			
+			//Get a socket for a connection with the given device
+			try{
+				tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+			}catch(IOException e){
+				Log.e(tag,"create() failed",e);
+			}
+			
+			this.socket=tmp;
+		}
+		
+		
+		/**
 		 * Run ConnectThread
 		 */
 		public void run(){
 			setName("ConnectThread"); 
 			
+			EventTrace.event(EventTrace.CONNECT_BEGIN, getId(), 0);
 			if(D) Log.d(tag,"Begin ConnectThread " + this);
 			 	 
 			 //Cancelling discovery, slow down a connection
@@ -418,7 +1026,14 @@ public class BluetoothService {
 					 Log.e(tag,"Unable to close socket during connection failure",ee);
 				 }
 				 
-				 //When failure, restart listening mode
+				 //When failure, restart listening mode. Relay nodes keep
+				 //their links and their AcceptThread: only forget the dial.
+				 synchronized(BluetoothService.this){
+					 if(keepLinks()){
+						 if(connectThread == this) connectThread = null;
+						 return;
+					 }
+				 }
 				 BluetoothService.this.start();
 				 return;
 			 }
@@ -446,6 +1061,7 @@ public class BluetoothService {
 		 */
 		public void cancel(){
 			
+			EventTrace.event(EventTrace.CANCEL, getId(), 0);
 			if(D) Log.d(tag, "cancel" + this);
 			
 			try{
@@ -467,11 +1083,46 @@ public class BluetoothService {
 	 *
 	 */
 	
-	public class ConnectedThread extends Thread {
+	public class ConnectedThread extends Thread implements FrameReader.Listener {
 	
 		private final BluetoothSocket socket;
 		private final InputStream inStream;
 		private final OutputStream outStream;
+		private final LinkTuner tuner;
+		
+		//Header, timestamp and the small per-type prefix (e.g. RPC id), guarded by itself
+		private final byte[] writeHeader = new byte[Frame.HEADER_SIZE + Frame.TIMESTAMP_SIZE + 32];
+		
+		//Staging for direct ByteBuffers, which have no array to hand to the stream
+		private byte[] directScratch;
+		
+		//Topics the remote device wants from us
+		private final TopicFilter peerSubscriptions = new TopicFilter();
+		
+		//Remote clock estimation, requests sent from the ClockSync thread
+		private final ClockSync clock = new ClockSync();
+		private final byte[] timeRequest = new byte[ClockSync.REQUEST_SIZE];
+		private final byte[] timeResponse = new byte[ClockSync.RESPONSE_SIZE];
+		private int syncRounds;
+		
+		//Last time request read, answered from the ClockSync thread, guarded by itself
+		private final byte[] timeRequestIn = new byte[ClockSync.REQUEST_SIZE];
+		private long timeRequestReceived;
+		
+		//Set by cancel(): no more periodic or queued sync work for this link
+		private volatile boolean closed;
+		
+		//Deduplication state mirrored with the peer, the inbound one in the dispatcher
+		private volatile ChunkDedup dedupOut;
+		
+		//What is done with the frames read
+		private final FrameDispatcher dispatcher = new FrameDispatcher(this, clock);
+		
+		//Capture streams of this link, see TrafficRecorder. The inbound one is
+		//used by this thread, the outbound one under the write lock.
+		private final int linkId = (int) getId();
+		private TrafficRecorder inRecording;
+		private TrafficRecorder outRecording;
 		
 		
 		/**
@@ -495,11 +1146,21 @@ public class BluetoothService {
 			this.inStream = tmpIn;
 			this.outStream = tmpOut;
 			
+			//Chunk and buffer sizes, starting from the ones saved for this device
+			synchronized(BluetoothService.this){
+				this.tuner = new LinkTuner(tuningPrefs, socket.getRemoteDevice().getAddress(),
+						minChunk, maxChunk, minReadBuffer, maxReadBuffer);
+			}
+			
 			//Send a message
 			String connect = "Devices connected";
 			byte[] buffer = connect.getBytes();
 			write(buffer);
 			
+			if(pushSubscriptions && !subscriptions.containsAll()){
+				sendSubscriptions(subscriptions);
+			}
+			
 		}
 		
 		
@@ -508,25 +1169,43 @@ public class BluetoothService {
 		 */
 		public void run(){
 			
+			EventTrace.event(EventTrace.CONNECTED_BEGIN, getId(), 0);
 			if(D) Log.d(tag,"Begin ConnectedThread");
 			
-			//1Kb
-			byte[] buffer = new byte[1024];
+			postSync(syncTask, 0);
+			
+			//Size chosen by the tuner, 1Kb by default
+			byte[] buffer = new byte[tuner.getReadSize()];
 			int bytes;
+			FrameReader reader = new FrameReader(this, buffer.length);
 			
 			//Keeps listening to the inputStream while connected
 			while(true){
 				try{
+					if(buffer.length != tuner.getReadSize()){
+						buffer = new byte[tuner.getReadSize()];
+					}
+					
 					//Read from the InputStream
 					bytes = inStream.read(buffer);
+					if(bytes < 0) throw new IOException("End of stream");
+					tuner.onRead(bytes);
 					
-					//Send obtained data to Main Activity
-					handler.obtainMessage(MainActivity.MESSAGE_READ, 
-							bytes, -1, buffer).sendToTarget();
+					recordIn(reader, buffer, bytes);
+					
+					//Split into frames, dispatched to onFrame()
+					reader.feed(buffer, 0, bytes);
 					
 				}catch(IOException e){
 					Log.e(tag,"Socket closed",e);
-					connectionLost();
+					
+					//A protocol error leaves the socket open: close it for the peer too
+					cancel();
+					endRecording();
+					tuner.save();
+					cancelSync(syncTask);
+					cancelSync(timeReply);
+					linkLost(this);
 					break;
 				}
 				
@@ -534,13 +1213,104 @@ public class BluetoothService {
 		}
 		
 		
+		/**
+		 * Frame header parsed, called by the FrameReader on this thread
+		 */
+		public boolean wants(int type, int topic){
+			return dispatcher.wants(type, topic);
+		}
+		
+		
+		/**
+		 * Frame received, called by the FrameReader on this thread
+		 */
+		public void onFrame(int type, int flags, int topic, byte[] payload, int offset, int length){
+			dispatcher.onFrame(type, flags, topic, payload, offset, length);
+		}
+		
+		
+		/**
+		 * Time request read: answered from the ClockSync thread, a reader
+		 * blocked on the write lock would stop draining the socket
+		 */
+		void onTimeRequest(byte[] payload, int offset){
+			long received = System.nanoTime();
+			synchronized(timeRequestIn){
+				System.arraycopy(payload, offset, timeRequestIn, 0, ClockSync.REQUEST_SIZE);
+				timeRequestReceived = received;
+			}
+			postSync(timeReply, 0);
+		}
+		
+		
+		/**
+		 * Record a chunk read. Recording starts, and starts again after a
+		 * drop, where the next message starts.
+		 */
+		private void recordIn(FrameReader reader, byte[] buffer, int bytes){
+			TrafficRecorder r = recorder;
+			if(r == null){
+				inRecording = null;
+				return;
+			}
+			
+			int start = 0;
+			if(r != inRecording){
+				start = reader.messageStart(buffer, 0, bytes);
+				if(start < 0 || !r.start(linkId, TrafficRecorder.IN)) return;
+				inRecording = r;
+			}
+			if(start < bytes && !r.record(linkId, TrafficRecorder.IN, buffer, start, bytes - start)){
+				inRecording = null;
+			}
+		}
+		
+		
+		/**
+		 * Under the write lock, before each message
+		 */
+		private void beginOut(){
+			TrafficRecorder r = recorder;
+			if(r == outRecording) return;
+			
+			outRecording = null;
+			if(r != null && !closed && r.start(linkId, TrafficRecorder.OUT)) outRecording = r;
+		}
+		
+		
+		/**
+		 * Under the write lock, bytes written
+		 */
+		private void recordOut(byte[] data, int offset, int length){
+			TrafficRecorder r = outRecording;
+			if(r != null && !r.record(linkId, TrafficRecorder.OUT, data, offset, length)){
+				outRecording = null;
+			}
+		}
+		
+		
+		/**
+		 * Connection lost: close the capture streams of this link
+		 */
+		private void endRecording(){
+			if(inRecording != null) inRecording.end(linkId, TrafficRecorder.IN);
+			inRecording = null;
+			synchronized(writeHeader){
+				if(outRecording != null) outRecording.end(linkId, TrafficRecorder.OUT);
+				outRecording = null;
+			}
+		}
+		
+		
 		/**
 		 * Cancel ConnectedThread
 		 */
 		public void cancel(){
 			
+			EventTrace.event(EventTrace.CANCEL, getId(), 0);
 			if(D) Log.d(tag, "cancel" + this);
 			
+			closed = true;
 			try{
 				socket.close();
 			}catch(IOException e){
@@ -553,17 +1323,460 @@ public class BluetoothService {
 		 * Write to the connected outstream of ConnectedThread
 		 */
 		public void write(byte[] buffer){
-			try{
-				outStream.write(buffer);
-				
+			write(buffer, 0, buffer.length);
+		}
+		
+		
+		/**
+		 * Write a slice of buffer. The MESSAGE_WRITE echo shares the array:
+		 * arg1 is the length and arg2 the offset.
+		 */
+		public void write(byte[] buffer, int offset, int length){
+			write(Frame.TOPIC_DEFAULT, buffer, offset, length);
+		}
+		
+		
+		public void write(int topic, byte[] buffer, int offset, int length){
+			//The peer does not want this topic
+			if(!peerSubscriptions.contains(topic)) return;
+			
+			boolean sent = dedup && ChunkDedup.accepts(length)
+					? writeDeduplicated(topic, buffer, offset, length)
+					: writeFrame(Frame.TYPE_DATA, topic, null, 0, buffer, offset, length);
+			if(sent){
 				//Share the sent message to the Main Activity
 				handler.obtainMessage(MainActivity.MESSAGE_WRITE, 
-						-1, -1, buffer).sendToTarget();
-			}catch(IOException e){
-				Log.e(tag,"Error during write",e);
+						length, offset, buffer).sendToTarget();
+			}
+		}
+		
+		
+		/**
+		 * Write the remaining bytes of buffers as one message. The buffers
+		 * are consumed; the MESSAGE_WRITE echo carries read-only views of
+		 * the written bytes (arg1 is the total length).
+		 */
+		public void write(ByteBuffer... buffers){
+			write(Frame.TOPIC_DEFAULT, buffers);
+		}
+		
+		
+		public void write(int topic, ByteBuffer... buffers){
+			
+			//The peer does not want this topic
+			if(!peerSubscriptions.contains(topic)) return;
+			
+			ByteBuffer[] written = new ByteBuffer[buffers.length];
+			for(int i = 0; i < buffers.length; i++){
+				written[i] = buffers[i].asReadOnlyBuffer();
+			}
+			
+			if(writeFrame(Frame.TYPE_DATA, topic, null, 0, buffers)){
+				handler.obtainMessage(MainActivity.MESSAGE_WRITE, 
+						length(written), -1, written).sendToTarget();
+			}
+		}
+		
+		
+		/**
+		 * Write one frame: header, optional head bytes (at most 32) and body.
+		 * Frames from concurrent writers never interleave.
+		 */
+		public boolean writeFrame(int type, byte[] head, int headLength,
+				byte[] body, int offset, int length){
+			return writeFrame(type, Frame.TOPIC_DEFAULT, head, headLength, body, offset, length);
+		}
+		
+		
+		public boolean writeFrame(int type, int topic, byte[] head, int headLength,
+				byte[] body, int offset, int length){
+			if(!checkSize(headLength + length)) return false;
+			
+			synchronized(writeHeader){
+				try{
+					beginOut();
+					
+					//Split in frames of at most MAX_PAYLOAD, see Frame
+					boolean first = true;
+					while(true){
+						int n = Math.min(length, room(type, headLength, first));
+						int more = n < length ? Frame.FLAG_MORE : 0;
+						writeHead(type, more, topic, head, headLength, n, first);
+						writeBody(body, offset, n);
+						if(more == 0) return true;
+						
+						offset += n;
+						length -= n;
+						headLength = 0;
+						first = false;
+					}
+				}catch(IOException e){
+					Log.e(tag,"Error during write",e);
+					return false;
+				}
+			}
+		}
+		
+		
+		/**
+		 * Encode and write under the write lock, so the peer decodes the
+		 * frames in the order the cache saw them
+		 */
+		private boolean writeDeduplicated(int topic, byte[] buffer, int offset, int length){
+			synchronized(writeHeader){
+				if(dedupOut == null) dedupOut = new ChunkDedup(false);
+				int size = dedupOut.encode(buffer, offset, length);
+				return writeFrame(Frame.TYPE_DEDUP, topic, null, 0, dedupOut.getEncoded(), 0, size);
+			}
+		}
+		
+		
+		/**
+		 * Write one frame whose body is gathered from several buffers
+		 */
+		public boolean writeFrame(int type, int topic, byte[] head, int headLength, ByteBuffer[] body){
+			int length = length(body);
+			if(!checkSize(headLength + length)) return false;
+			
+			synchronized(writeHeader){
+				try{
+					beginOut();
+					
+					boolean first = true;
+					int i = 0;
+					while(true){
+						int n = Math.min(length, room(type, headLength, first));
+						int more = n < length ? Frame.FLAG_MORE : 0;
+						writeHead(type, more, topic, head, headLength, n, first);
+						
+						//This frame's share of the buffers
+						for(int left = n; left > 0; ){
+							while(!body[i].hasRemaining()) i++;
+							int k = Math.min(left, body[i].remaining());
+							writeBody(body[i], k);
+							left -= k;
+						}
+						if(more == 0) return true;
+						
+						length -= n;
+						headLength = 0;
+						first = false;
+					}
+				}catch(IOException e){
+					Log.e(tag,"Error during write",e);
+					return false;
+				}
+			}
+		}
+		
+		
+		/**
+		 * Send a clock synchronization request, a few quick ones first
+		 */
+		private final Runnable syncTask = new Runnable(){
+			public void run(){
+				if(closed) return;
+				ClockSync.putRequest(timeRequest, System.nanoTime());
+				writeFrame(Frame.TYPE_TIME_REQUEST, null, 0, timeRequest, 0, timeRequest.length);
+				
+				syncRounds++;
+				postSync(this, syncRounds < SYNC_FAST_ROUNDS ? SYNC_FAST_MS : SYNC_INTERVAL_MS);
+			}
+		};
+		
+		
+		/**
+		 * Answer the last time request read
+		 */
+		private final Runnable timeReply = new Runnable(){
+			public void run(){
+				if(closed) return;
+				synchronized(timeRequestIn){
+					clock.putResponse(timeResponse, timeRequestIn, 0, timeRequestReceived);
+				}
+				writeFrame(Frame.TYPE_TIME_RESPONSE, null, 0, timeResponse, 0, timeResponse.length);
+			}
+		};
+		
+		
+		/**
+		 * Queue sync work for this link unless it was cancelled. Checked
+		 * under the service lock, which stop() and cancelSync() also take,
+		 * so nothing is queued after them.
+		 */
+		private void postSync(Runnable task, long delayMs){
+			synchronized(BluetoothService.this){
+				if(closed) return;
+				syncHandler().postDelayed(task, delayMs);
+			}
+		}
+		
+		
+		String getAddress(){
+			return socket.getRemoteDevice().getAddress();
+		}
+		
+		
+		/**
+		 * cancel() was called: the link is going away
+		 */
+		boolean isClosed(){
+			return closed;
+		}
+		
+		
+		/**
+		 * Tell the remote device which topics to send us
+		 */
+		void sendSubscriptions(TopicFilter topics){
+			byte[] bits = new byte[TopicFilter.SIZE];
+			topics.toBytes(bits, 0);
+			writeFrame(Frame.TYPE_SUBSCRIBE, null, 0, bits, 0, bits.length);
+		}
+		
+		
+		/**
+		 * Messages bigger than this are dropped rather than sent
+		 */
+		private boolean checkSize(int size){
+			if(size <= Frame.MAX_MESSAGE) return true;
+			Log.e(tag, "Message too long: " + size + " bytes");
+			return false;
+		}
+		
+		
+		/**
+		 * Sender clock on data, for the one-way latency at the receiver
+		 */
+		private boolean stamped(int type){
+			return timestamps && (type == Frame.TYPE_DATA || type == Frame.TYPE_SAMPLES 
+					|| type == Frame.TYPE_DEDUP);
+		}
+		
+		
+		/**
+		 * Body bytes that fit in a frame after the head and timestamp
+		 */
+		private int room(int type, int headLength, boolean first){
+			if(!first) return Frame.MAX_PAYLOAD;
+			return Frame.MAX_PAYLOAD - headLength - (stamped(type) ? Frame.TIMESTAMP_SIZE : 0);
+		}
+		
+		
+		/**
+		 * Header of one frame. Only the first frame of a message has the
+		 * head bytes and the timestamp.
+		 */
+		private void writeHead(int type, int more, int topic, byte[] head, int headLength, 
+				int bodyLength, boolean first) throws IOException{
+			EventTrace.event(EventTrace.FRAME_WRITE, type, headLength + bodyLength);
+			
+			int size = Frame.HEADER_SIZE;
+			
+			if(first && stamped(type)){
+				Frame.putHeader(writeHeader, type, Frame.FLAG_TIMESTAMP | more, topic, 
+						Frame.TIMESTAMP_SIZE + headLength + bodyLength);
+				Frame.putLong(writeHeader, size, System.nanoTime());
+				size += Frame.TIMESTAMP_SIZE;
+			}else{
+				Frame.putHeader(writeHeader, type, more, topic, headLength + bodyLength);
+			}
+			
+			if(headLength > 0){
+				System.arraycopy(head, 0, writeHeader, size, headLength);
+			}
+			outStream.write(writeHeader, 0, size + headLength);
+			recordOut(writeHeader, 0, size + headLength);
+		}
+		
+		
+		/**
+		 * Body in chunks of the size the tuner is trying
+		 */
+		private void writeBody(byte[] body, int offset, int length) throws IOException{
+			int end = offset + length;
+			while(offset < end){
+				int n = Math.min(tuner.getChunkSize(), end - offset);
+				long start = System.nanoTime();
+				outStream.write(body, offset, n);
+				tuner.onWrite(n, System.nanoTime() - start);
+				recordOut(body, offset, n);
+				offset += n;
+			}
+		}
+		
+		
+		/**
+		 * The next length bytes of body
+		 */
+		private void writeBody(ByteBuffer body, int length) throws IOException{
+			
+			//Heap buffer: straight from its array
+			if(body.hasArray()){
+				writeBody(body.array(), body.arrayOffset() + body.position(), length);
+				body.position(body.position() + length);
+				return;
+			}
+			
+			//Direct buffer: through the staging array, a chunk at a time
+			int chunk = tuner.getChunkSize();
+			if(directScratch == null || directScratch.length < chunk){
+				directScratch = new byte[chunk];
+			}
+			while(length > 0){
+				int n = Math.min(chunk, length);
+				body.get(directScratch, 0, n);
+				writeBody(directScratch, 0, n);
+				length -= n;
+			}
+		}
+		
+		
+		private int length(ByteBuffer[] buffers){
+			int length = 0;
+			for(ByteBuffer buffer : buffers){
+				length += buffer.remaining();
 			}
+			return length;
 		}
 	}	
+	
+	
+	
+	
+	
+	/**
+	 * 
+	 * What is done with each frame read from a link: data to the Main
+	 *	Activity, samples to the ring, the rest to the clock, RPC and relay
+	 *	layers. Kept apart from the socket so a captured stream can be fed
+	 *	through it by replay(); without a link (replay) the frames that
+	 *	would act on a live connection (time requests, subscriptions, RPC,
+	 *	relay) are only traced.
+	 *
+	 */
+	
+	class FrameDispatcher implements FrameReader.Listener {
+		
+		private final ConnectedThread link;
+		private final ClockSync clock;
+		
+		//Deduplication cache mirrored with the peer sender
+		private ChunkDedup dedupIn;
+		
+		
+		/**
+		 * Constructor FrameDispatcher, link is null for a replay
+		 */
+		FrameDispatcher(ConnectedThread link, ClockSync clock){
+			this.link = link;
+			this.clock = clock;
+		}
+		
+		
+		/**
+		 * Data nobody subscribed to is skipped before being copied
+		 */
+		public boolean wants(int type, int topic){
+			return type != Frame.TYPE_DATA || subscriptions.contains(topic);
+		}
+		
+		
+		public void onFrame(int type, int flags, int topic, byte[] payload, int offset, int length){
+			
+			EventTrace.event(EventTrace.FRAME_READ, type, length);
+			
+			//One-way latency of stamped frames
+			if((flags & Frame.FLAG_TIMESTAMP) != 0){
+				if(length < Frame.TIMESTAMP_SIZE) return;
+				clock.onTimestamp(Frame.getLong(payload, offset), System.nanoTime());
+				offset += Frame.TIMESTAMP_SIZE;
+				length -= Frame.TIMESTAMP_SIZE;
+			}
+			
+			switch(type){
+			case Frame.TYPE_DATA:
+				//The reader reuses its buffer: hand over a copy
+				byte[] data = new byte[length];
+				System.arraycopy(payload, offset, data, 0, length);
+				
+				//Send obtained data to Main Activity, topic in arg2
+				handler.obtainMessage(MainActivity.MESSAGE_READ, 
+						length, topic, data).sendToTarget();
+				break;
+				
+			case Frame.TYPE_DEDUP:
+				//Decoded even if unsubscribed, to keep the cache in step
+				if(dedupIn == null) dedupIn = new ChunkDedup(true);
+				byte[] message;
+				try{
+					message = dedupIn.decode(payload, offset, length);
+				}catch(ProtocolException e){
+					Log.e(tag, "Bad dedup frame", e);
+					break;
+				}
+				if(subscriptions.contains(topic)){
+					handler.obtainMessage(MainActivity.MESSAGE_READ, 
+							message.length, topic, message).sendToTarget();
+				}
+				break;
+				
+			case Frame.TYPE_SAMPLES:
+				SampleRingBuffer ring = sampleRing;
+				if(ring != null) ring.write(payload, offset, length);
+				break;
+				
+			case Frame.TYPE_TIME_RESPONSE:
+				if(length >= ClockSync.RESPONSE_SIZE){
+					clock.onResponse(payload, offset, System.nanoTime());
+				}
+				break;
+				
+			default:
+				if(link != null) onLinkFrame(type, payload, offset, length);
+				break;
+			}
+		}
+		
+		
+		/**
+		 * Frames that answer or act on the live connection
+		 */
+		private void onLinkFrame(int type, byte[] payload, int offset, int length){
+			
+			switch(type){
+			case Frame.TYPE_TIME_REQUEST:
+				if(length >= ClockSync.REQUEST_SIZE) link.onTimeRequest(payload, offset);
+				break;
+				
+			case Frame.TYPE_SUBSCRIBE:
+				if(length >= TopicFilter.SIZE){
+					link.peerSubscriptions.fromBytes(payload, offset);
+				}
+				break;
+				
+			case Frame.TYPE_REQUEST:
+				rpc.onRequest(link, payload, offset, length);
+				break;
+				
+			case Frame.TYPE_RESPONSE:
+				rpc.onResponse(payload, offset, length);
+				break;
+				
+			case Frame.TYPE_RELAY:
+				router.onRelay(link, payload, offset, length);
+				break;
+				
+			case Frame.TYPE_ANNOUNCE:
+				router.onAnnounce(link, payload, offset, length);
+				break;
+				
+			default:
+				if(D) Log.d(tag, "Unknown frame type " + type);
+				break;
+			}
+		}
+	}
 
 	public ConnectedThread getConnectedThread(){
 		return this.connectedThread;
@@ -0,0 +1,317 @@
+package com.example.bluetooth;
+
+import java.net.ProtocolException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ *
+ *	Content addressed deduplication of the payloads sent over one link.
+ *	A payload is cut into content defined chunks (a Gear rolling hash
+ *	picks the boundaries, so an edit only changes the chunks around it)
+ *	and each chunk is named by its SHA-1, truncated to 16 bytes.
+ *
+ *	Both ends keep the names of the last chunks in an LRU cache bounded
+ *	in bytes. The sender and the receiver apply the same operations in
+ *	the same order, so the two caches stay identical without any
+ *	acknowledgement: a chunk in the sender cache is sent as its name only.
+ *	The sender keeps names and sizes, the receiver also the bytes.
+ *
+ *	TYPE_DEDUP payload: total length (4) followed by records. Encoded
+ *	payloads bigger than a frame go as a split message (Frame.FLAG_MORE),
+ *	so blobs up to about Frame.MAX_MESSAGE are deduplicated as a whole.
+ *
+ *	  LITERAL (1) length (4) bytes
+ *	  REF     (1) name (16)
+ */
+
+public class ChunkDedup {
+
+	//Payloads smaller than this are sent as they are
+	public static final int THRESHOLD = 1024;
+
+	//Chunk sizes: boundaries where the top AVG_BITS of the hash are zero
+	public static final int MIN_CHUNK = 512;
+	public static final int MAX_CHUNK = 8 * 1024;
+	private static final int AVG_BITS = 11;
+	private static final long MASK = ((1L << AVG_BITS) - 1) << (64 - AVG_BITS);
+
+	public static final int CACHE_BYTES = 1024 * 1024;
+
+	//Records - ENUM
+	private static final int LITERAL = 0;
+	private static final int REF = 1;
+
+	private static final int NAME_SIZE = 16;
+	private static final int LITERAL_HEAD = 5;
+	private static final int REF_SIZE = 1 + NAME_SIZE;
+
+	//Gear table, the same on every device
+	private static final long[] GEAR = new long[256];
+	static{
+		Random random = new Random(0x6ce23d3aL);
+		for(int i = 0; i < GEAR.length; i++){
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+
+	private static final byte[] NO_DATA = new byte[0];
+
+
+	private final boolean keepData;
+	private final LinkedHashMap<Name, byte[]> cache = new LinkedHashMap<Name, byte[]>(256, 0.75f, true);
+	private final Name probe = new Name();
+	private final MessageDigest sha1;
+	private final byte[] digest = new byte[20];
+	private int cacheBytes;
+
+	//Encoder output, reused
+	private byte[] encoded = new byte[0];
+
+	//Statistics, payload bytes before and after
+	private long plainBytes;
+	private long wireBytes;
+
+
+	/**
+	 * Constructor. The receiving side keeps the chunk bytes (keepData).
+	 */
+	public ChunkDedup(boolean keepData){
+		this.keepData = keepData;
+		try{
+			this.sha1 = MessageDigest.getInstance("SHA-1");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Whether a payload of this size should be encoded: big enough to
+	 * gain, and small enough for the worst case to fit in a message
+	 */
+	public static boolean accepts(int length){
+		return length >= THRESHOLD && worst(length) <= Frame.MAX_MESSAGE;
+	}
+
+
+	/**
+	 * Encoded size when no chunk is in the cache, all of MIN_CHUNK
+	 */
+	private static long worst(int length){
+		return 4 + ((long) length / MIN_CHUNK + 1) * LITERAL_HEAD + length;
+	}
+
+
+	/**
+	 * Encode length bytes of src into getEncoded(), returns the size.
+	 * Every call changes the cache: each encoded payload must be sent.
+	 */
+	public synchronized int encode(byte[] src, int offset, int length){
+
+		int worst = (int) worst(length);
+		if(encoded.length < worst){
+			encoded = new byte[worst];
+		}
+
+		Frame.putInt(encoded, 0, length);
+		int pos = 4;
+		int end = offset + length;
+
+		while(offset < end){
+			int n = cut(src, offset, end);
+			Name name = name(src, offset, n);
+
+			if(cache.get(name) != null){
+				encoded[pos] = REF;
+				name.put(encoded, pos + 1);
+				pos += REF_SIZE;
+			}else{
+				add(new Name(name), src, offset, n);
+				encoded[pos] = LITERAL;
+				Frame.putInt(encoded, pos + 1, n);
+				System.arraycopy(src, offset, encoded, pos + LITERAL_HEAD, n);
+				pos += LITERAL_HEAD + n;
+			}
+			offset += n;
+		}
+
+		plainBytes += length;
+		wireBytes += pos;
+		return pos;
+	}
+
+
+	public byte[] getEncoded(){
+		return encoded;
+	}
+
+
+	/**
+	 * Rebuild a payload from its records
+	 */
+	public synchronized byte[] decode(byte[] src, int offset, int length) throws ProtocolException{
+
+		int end = offset + length;
+		if(length < 4) throw new ProtocolException("Dedup frame too short");
+
+		int total = Frame.getInt(src, offset);
+		if(total < 0 || total > Frame.MAX_MESSAGE){
+			throw new ProtocolException("Bad dedup length: " + total);
+		}
+		byte[] out = new byte[total];
+		int pos = 0;
+		offset += 4;
+
+		while(offset < end){
+			if(src[offset] == LITERAL){
+				if(end - offset < LITERAL_HEAD) throw new ProtocolException("Truncated literal");
+				int n = Frame.getInt(src, offset + 1);
+				offset += LITERAL_HEAD;
+				if(n < 0 || n > end - offset || n > total - pos){
+					throw new ProtocolException("Bad literal length: " + n);
+				}
+
+				byte[] chunk = new byte[n];
+				System.arraycopy(src, offset, chunk, 0, n);
+				add(new Name(name(chunk, 0, n)), chunk, 0, n);
+
+				System.arraycopy(chunk, 0, out, pos, n);
+				pos += n;
+				offset += n;
+
+			}else if(src[offset] == REF){
+				if(end - offset < REF_SIZE) throw new ProtocolException("Truncated ref");
+				probe.get(src, offset + 1);
+				offset += REF_SIZE;
+
+				//Only happens if the two caches went out of step
+				byte[] chunk = cache.get(probe);
+				if(chunk == null) throw new ProtocolException("Unknown chunk");
+				if(chunk.length > total - pos) throw new ProtocolException("Chunk overflows payload");
+
+				System.arraycopy(chunk, 0, out, pos, chunk.length);
+				pos += chunk.length;
+
+			}else{
+				throw new ProtocolException("Bad dedup record: " + src[offset]);
+			}
+		}
+
+		if(pos != total) throw new ProtocolException("Dedup payload incomplete");
+
+		plainBytes += total;
+		wireBytes += length;
+		return out;
+	}
+
+
+	public synchronized long getPlainBytes(){
+		return plainBytes;
+	}
+
+	public synchronized long getWireBytes(){
+		return wireBytes;
+	}
+
+
+	/**
+	 * Length of the chunk starting at offset
+	 */
+	private static int cut(byte[] src, int offset, int end){
+
+		int length = end - offset;
+		if(length <= MIN_CHUNK) return length;
+		int max = Math.min(length, MAX_CHUNK);
+
+		//The hash only depends on the last 64 bytes: start just before MIN_CHUNK
+		long hash = 0;
+		for(int i = MIN_CHUNK - 64; i < MIN_CHUNK; i++){
+			hash = (hash << 1) + GEAR[src[offset + i] & 0xff];
+		}
+		for(int i = MIN_CHUNK; i < max; i++){
+			hash = (hash << 1) + GEAR[src[offset + i] & 0xff];
+			if((hash & MASK) == 0) return i + 1;
+		}
+		return max;
+	}
+
+
+	/**
+	 * Name of a chunk, in the probe
+	 */
+	private Name name(byte[] src, int offset, int length){
+		sha1.update(src, offset, length);
+		try{
+			sha1.digest(digest, 0, digest.length);
+		}catch(DigestException e){
+			throw new IllegalStateException(e);
+		}
+		probe.get(digest, 0);
+		return probe;
+	}
+
+
+	/**
+	 * Cache a chunk, dropping the least recently used past CACHE_BYTES
+	 */
+	private void add(Name name, byte[] src, int offset, int length){
+
+		cache.put(name, keepData ? src : NO_DATA);
+		name.size = length;
+		cacheBytes += length;
+
+		Iterator<Map.Entry<Name, byte[]>> it = cache.entrySet().iterator();
+		while(cacheBytes > CACHE_BYTES && it.hasNext()){
+			cacheBytes -= it.next().getKey().size;
+			it.remove();
+		}
+	}
+
+
+
+
+	/**
+	 * 128 bit chunk name, and the chunk size once in the cache
+	 */
+	private static class Name {
+		long high;
+		long low;
+		int size;
+
+		Name(){
+		}
+
+		Name(Name other){
+			this.high = other.high;
+			this.low = other.low;
+		}
+
+		void get(byte[] src, int offset){
+			high = Frame.getLong(src, offset);
+			low = Frame.getLong(src, offset + 8);
+		}
+
+		void put(byte[] dst, int offset){
+			Frame.putLong(dst, offset, high);
+			Frame.putLong(dst, offset + 8, low);
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Name)) return false;
+			Name other = (Name) o;
+			return high == other.high && low == other.low;
+		}
+
+		public int hashCode(){
+			return (int) (low ^ (low >>> 32));
+		}
+	}
+}
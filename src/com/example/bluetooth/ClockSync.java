@@ -0,0 +1,180 @@
+package com.example.bluetooth;
+
+
+/**
+ *
+ *	Estimates the offset and drift of the remote device clock
+ *	(System.nanoTime() on both sides), NTP style.
+ *
+ *	A request carries the local send time t0; the peer answers with its
+ *	receive time t1 and send time t2; the response arrives at t3.
+ *
+ *	  offset = ((t1 - t0) + (t2 - t3)) / 2     remote - local
+ *	  delay  = (t3 - t0) - (t2 - t1)           round trip on the link
+ *
+ *	Of the last few exchanges the one with the smallest round trip is the
+ *	least disturbed by queueing, and gives the current offset. The drift
+ *	is the slope of those offsets over local time.
+ *
+ *	Response payload: t0 (8) t1 (8) t2 (8) followed by the responder's
+ *	inbound latency p50, p90, p99 (8 each), i.e. our outbound latency.
+ */
+
+public class ClockSync {
+
+	public static final int REQUEST_SIZE = 8;
+	public static final int RESPONSE_SIZE = 48;
+
+	private static final int FILTER = 8;
+	private static final int HISTORY = 16;
+
+
+	//Last exchanges
+	private final long[] sampleOffset = new long[FILTER];
+	private final long[] sampleDelay = new long[FILTER];
+	private int samples;
+
+	//Filtered offsets over time, for the drift
+	private final long[] historyLocal = new long[HISTORY];
+	private final long[] historyOffset = new long[HISTORY];
+	private int history;
+
+	private boolean synced;
+	private long offset;
+	private long roundTrip;
+	private long reference;
+	private double drift;
+
+	//One-way latency of frames with a sender timestamp
+	private final LatencyHistogram inbound = new LatencyHistogram();
+	private final long[] outbound = new long[3];
+
+
+	/**
+	 * Fill a request payload
+	 */
+	public static void putRequest(byte[] dst, long t0){
+		Frame.putLong(dst, 0, t0);
+	}
+
+
+	/**
+	 * Fill the response to a request received at t1, about to be sent
+	 */
+	public void putResponse(byte[] dst, byte[] request, int offset, long t1){
+		System.arraycopy(request, offset, dst, 0, REQUEST_SIZE);
+		Frame.putLong(dst, 8, t1);
+		Frame.putLong(dst, 24, inbound.getPercentile(50));
+		Frame.putLong(dst, 32, inbound.getPercentile(90));
+		Frame.putLong(dst, 40, inbound.getPercentile(99));
+		Frame.putLong(dst, 16, System.nanoTime());
+	}
+
+
+	/**
+	 * Response received at t3
+	 */
+	public synchronized void onResponse(byte[] payload, int offset, long t3){
+
+		long t0 = Frame.getLong(payload, offset);
+		long t1 = Frame.getLong(payload, offset + 8);
+		long t2 = Frame.getLong(payload, offset + 16);
+		outbound[0] = Frame.getLong(payload, offset + 24);
+		outbound[1] = Frame.getLong(payload, offset + 32);
+		outbound[2] = Frame.getLong(payload, offset + 40);
+
+		int slot = samples++ % FILTER;
+		sampleOffset[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+		sampleDelay[slot] = (t3 - t0) - (t2 - t1);
+
+		//Best of the last exchanges
+		int best = 0;
+		int n = Math.min(samples, FILTER);
+		for(int i = 1; i < n; i++){
+			if(sampleDelay[i] < sampleDelay[best]) best = i;
+		}
+		this.offset = sampleOffset[best];
+		this.roundTrip = sampleDelay[best];
+		this.reference = t3;
+		this.synced = true;
+
+		int h = history++ % HISTORY;
+		historyLocal[h] = t3;
+		historyOffset[h] = this.offset;
+		updateDrift();
+	}
+
+
+	/**
+	 * Remote nanoTime() to local nanoTime()
+	 */
+	public synchronized long toLocal(long remote){
+		long local = remote - offset;
+		return remote - offset - (long) (drift * (local - reference));
+	}
+
+
+	/**
+	 * Frame sent at the remote time sent arrived now
+	 */
+	public void onTimestamp(long sent, long now){
+		if(isSynced()) inbound.record(now - toLocal(sent));
+	}
+
+
+	public synchronized boolean isSynced(){
+		return synced;
+	}
+
+	public synchronized long getOffset(){
+		return offset;
+	}
+
+	public synchronized long getRoundTrip(){
+		return roundTrip;
+	}
+
+	/**
+	 * Remote clock drift, in nanoseconds per second
+	 */
+	public synchronized double getDrift(){
+		return drift * 1e9;
+	}
+
+	public LatencyHistogram getInbound(){
+		return inbound;
+	}
+
+	/**
+	 * p50, p90 and p99 of our frames as measured by the peer
+	 */
+	public synchronized long[] getOutbound(){
+		return outbound.clone();
+	}
+
+
+	/**
+	 * Least squares slope of offset over local time
+	 */
+	private void updateDrift(){
+
+		int n = Math.min(history, HISTORY);
+		if(n < 3) return;
+
+		double meanX = 0, meanY = 0;
+		for(int i = 0; i < n; i++){
+			meanX += historyLocal[i] - reference;
+			meanY += historyOffset[i] - offset;
+		}
+		meanX /= n;
+		meanY /= n;
+
+		double cov = 0, var = 0;
+		for(int i = 0; i < n; i++){
+			double dx = historyLocal[i] - reference - meanX;
+			cov += dx * (historyOffset[i] - offset - meanY);
+			var += dx * dx;
+		}
+		if(var > 0) drift = cov / var;
+	}
+}
@@ -0,0 +1,191 @@
+package com.example.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *
+ *	Binary event tracer for the connection lifecycle. Every event is a
+ *	fixed size record (timestamp, thread, event id, two longs) written
+ *	into a preallocated ring shared by the whole process, so recording
+ *	costs no allocation, no string and no binder call. When disabled,
+ *	event() is a single volatile read.
+ *
+ *	dump() writes the ring, oldest event first:
+ *
+ *	  "BTTRACE1" pid (4) name count (4) names (UTF) record count (8)
+ *	  records: nanoTime (8) tid (8) event (8) a (8) b (8)
+ *
+ *	toChromeTrace() (or main() on a workstation) turns a dump into the
+ *	JSON trace format that chrome://tracing and Perfetto open.
+ */
+
+public final class EventTrace {
+
+	//Events - ENUM, index in NAMES
+	public static final int STATE = 0;
+	public static final int START = 1;
+	public static final int STOP = 2;
+	public static final int CONNECT = 3;
+	public static final int CONNECTED = 4;
+	public static final int CONNECTION_FAILED = 5;
+	public static final int CONNECTION_LOST = 6;
+	public static final int ACCEPT_BEGIN = 7;
+	public static final int ACCEPT_END = 8;
+	public static final int CONNECT_BEGIN = 9;
+	public static final int CONNECTED_BEGIN = 10;
+	public static final int CANCEL = 11;
+	public static final int FRAME_READ = 12;
+	public static final int FRAME_WRITE = 13;
+	public static final int STARTUP = 14;
+
+	private static final String[] NAMES = {
+		"state", "start", "stop", "connect", "connected", "connectionFailed",
+		"connectionLost", "acceptBegin", "acceptEnd", "connectBegin",
+		"connectedBegin", "cancel", "frameRead", "frameWrite", "startup"
+	};
+
+	private static final String MAGIC = "BTTRACE1";
+	private static final int RECORD = 5;
+	private static final int CAPACITY = 16 * 1024;
+
+
+	private static volatile boolean enabled;
+	private static long[] ring;
+	private static final AtomicLong next = new AtomicLong();
+
+
+	private EventTrace(){
+	}
+
+
+	/**
+	 * Start or stop recording. The ring is allocated the first time.
+	 */
+	public static synchronized void setEnabled(boolean enable){
+		if(enable && ring == null){
+			ring = new long[CAPACITY * RECORD];
+		}
+		enabled = enable;
+	}
+
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+
+	/**
+	 * Record an event with two event specific values
+	 */
+	public static void event(int id, long a, long b){
+
+		if(!enabled) return;
+
+		long[] r = ring;
+		int pos = (int) (next.getAndIncrement() & (CAPACITY - 1)) * RECORD;
+		r[pos] = System.nanoTime();
+		r[pos + 1] = android.os.Process.myTid();
+		r[pos + 2] = id;
+		r[pos + 3] = a;
+		r[pos + 4] = b;
+	}
+
+
+	/**
+	 * Write the recorded events to file. Best taken with tracing
+	 * disabled: events recorded during the dump may be torn.
+	 */
+	public static synchronized void dump(File file) throws IOException{
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try{
+			out.writeBytes(MAGIC);
+			out.writeInt(android.os.Process.myPid());
+			out.writeInt(NAMES.length);
+			for(String name : NAMES){
+				out.writeUTF(name);
+			}
+
+			long end = next.get();
+			long start = Math.max(0, end - CAPACITY);
+			out.writeLong(ring == null ? 0 : end - start);
+
+			for(long i = start; ring != null && i < end; i++){
+				int pos = (int) (i & (CAPACITY - 1)) * RECORD;
+				for(int f = 0; f < RECORD; f++){
+					out.writeLong(ring[pos + f]);
+				}
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Convert a dump to Chrome/Perfetto JSON, one instant event per record
+	 */
+	public static void toChromeTrace(File dump, Writer json) throws IOException{
+
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(dump)));
+		try{
+			byte[] magic = new byte[MAGIC.length()];
+			in.readFully(magic);
+			if(!MAGIC.equals(new String(magic, "US-ASCII"))){
+				throw new IOException("Not an event trace: " + dump);
+			}
+
+			int pid = in.readInt();
+			String[] names = new String[in.readInt()];
+			for(int i = 0; i < names.length; i++){
+				names[i] = in.readUTF();
+			}
+
+			long count = in.readLong();
+			json.write("{\"traceEvents\":[");
+			for(long i = 0; i < count; i++){
+				long ts = in.readLong();
+				long tid = in.readLong();
+				int id = (int) in.readLong();
+				long a = in.readLong();
+				long b = in.readLong();
+
+				if(i > 0) json.write(",\n");
+				json.write("{\"name\":\"" + (id >= 0 && id < names.length ? names[id] : "event" + id)
+						+ "\",\"ph\":\"i\",\"s\":\"t\",\"ts\":" + (ts / 1000) + "." + (ts % 1000 / 100)
+						+ ",\"pid\":" + pid + ",\"tid\":" + tid
+						+ ",\"args\":{\"a\":" + a + ",\"b\":" + b + "}}");
+			}
+			json.write("]}\n");
+		}finally{
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Workstation converter: EventTrace <dump> <trace.json>
+	 */
+	public static void main(String[] args) throws IOException{
+		Writer json = new BufferedWriter(new FileWriter(args[1]));
+		try{
+			toChromeTrace(new File(args[0]), json);
+		}finally{
+			json.close();
+		}
+	}
+}
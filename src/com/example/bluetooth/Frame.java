@@ -0,0 +1,97 @@
+package com.example.bluetooth;
+
+
+/**
+ *
+ *	Wire format of everything sent through a ConnectedThread. Each frame
+ *	starts with a fixed size header followed by the payload:
+ *
+ *	  type   (1 byte)  - one of the TYPE_* constants
+ *	  flags  (1 byte)  - FLAG_* bits
+ *	  topic  (1 byte)  - what a TYPE_DATA payload is about, 0 by default
+ *	  length (4 bytes) - payload length, big endian
+ *
+ *	With FLAG_TIMESTAMP the payload starts with the sender System.nanoTime()
+ *	at write time (8 bytes, counted in length).
+ *
+ *	A message bigger than MAX_PAYLOAD goes as several frames of the same
+ *	type, back to back: every frame but the last has FLAG_MORE, and only
+ *	the first one has the timestamp. The FrameReader joins them again.
+ *
+ *	Helpers to put/get big endian values in byte arrays are kept here so
+ *	the encoders do not need a ByteBuffer for a handful of bytes.
+ */
+
+public final class Frame {
+
+	//Header layout
+	public static final int HEADER_SIZE = 7;
+	public static final int MAX_PAYLOAD = 64 * 1024;
+	public static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+	//Frame types - ENUM
+	public static final int TYPE_DATA = 0;
+	public static final int TYPE_REQUEST = 1;
+	public static final int TYPE_RESPONSE = 2;
+	public static final int TYPE_RELAY = 3;
+	public static final int TYPE_ANNOUNCE = 4;
+	public static final int TYPE_SUBSCRIBE = 5;
+	public static final int TYPE_SAMPLES = 6;
+	public static final int TYPE_TIME_REQUEST = 7;
+	public static final int TYPE_TIME_RESPONSE = 8;
+	public static final int TYPE_DEDUP = 9;
+	
+	//Header flags
+	public static final int FLAG_TIMESTAMP = 0x01;
+	public static final int FLAG_MORE = 0x02;
+	public static final int TIMESTAMP_SIZE = 8;
+	
+	//Topic of data written without one
+	public static final int TOPIC_DEFAULT = 0;
+
+
+	private Frame(){
+	}
+
+
+	/**
+	 * Write a frame header at the beginning of dst
+	 */
+	public static void putHeader(byte[] dst, int type, int flags, int topic, int length){
+		dst[0] = (byte) type;
+		dst[1] = (byte) flags;
+		dst[2] = (byte) topic;
+		putInt(dst, 3, length);
+	}
+
+
+	/**
+	 * Big endian int helpers
+	 */
+	public static void putInt(byte[] dst, int off, int value){
+		dst[off] = (byte) (value >>> 24);
+		dst[off + 1] = (byte) (value >>> 16);
+		dst[off + 2] = (byte) (value >>> 8);
+		dst[off + 3] = (byte) value;
+	}
+
+	public static int getInt(byte[] src, int off){
+		return ((src[off] & 0xff) << 24)
+				| ((src[off + 1] & 0xff) << 16)
+				| ((src[off + 2] & 0xff) << 8)
+				| (src[off + 3] & 0xff);
+	}
+
+
+	/**
+	 * Big endian long helpers
+	 */
+	public static void putLong(byte[] dst, int off, long value){
+		putInt(dst, off, (int) (value >>> 32));
+		putInt(dst, off + 4, (int) value);
+	}
+
+	public static long getLong(byte[] src, int off){
+		return ((long) getInt(src, off) << 32) | (getInt(src, off + 4) & 0xffffffffL);
+	}
+}
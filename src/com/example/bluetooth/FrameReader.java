@@ -0,0 +1,236 @@
+package com.example.bluetooth;
+
+import java.net.ProtocolException;
+
+
+/**
+ *
+ *	Reassembles frames from the raw chunks returned by InputStream.read().
+ *	A chunk can hold part of a frame, exactly one frame or several of them,
+ *	so the reader keeps the partial header and payload between calls.
+ *
+ *	Frames that arrive whole inside a chunk are handed to the Listener
+ *	straight from the chunk, without copying them first. Frames the
+ *	Listener does not want, judging by their header, are skipped as they
+ *	arrive without being copied at all.
+ *
+ *	Messages split into several frames (FLAG_MORE) are joined and handed
+ *	over once, with the type, topic and flags of their first frame.
+ */
+
+public class FrameReader {
+
+	/**
+	 * Receives every complete frame. The payload array is only valid
+	 * during the call: it is reused for the following frames.
+	 */
+	public interface Listener {
+		boolean wants(int type, int topic);
+		void onFrame(int type, int flags, int topic, byte[] payload, int offset, int length);
+	}
+
+
+	private final Listener listener;
+	private final byte[] header = new byte[Frame.HEADER_SIZE];
+	private int headerPos;
+
+	private byte[] payload;
+	private int payloadPos;
+	private int type;
+	private int flags;
+	private int topic;
+	private int length;
+	private boolean skip;
+
+	//Message being joined from FLAG_MORE frames
+	private boolean joining;
+	private boolean joinSkip;
+	private int joinType;
+	private int joinFlags;
+	private int joinTopic;
+	private byte[] message;
+	private int messageLength;
+
+
+	/**
+	 * Constructor
+	 */
+	public FrameReader(Listener listener, int initialCapacity){
+		this.listener = listener;
+		this.payload = new byte[initialCapacity];
+	}
+
+
+	/**
+	 * Feed a chunk of bytes read from the stream
+	 */
+	public void feed(byte[] buffer, int offset, int count) throws ProtocolException{
+
+		int end = offset + count;
+
+		while(offset < end){
+
+			//Fast path: a whole frame is available in the chunk
+			if(headerPos == 0 && end - offset >= Frame.HEADER_SIZE){
+				int len = Frame.getInt(buffer, offset + 3);
+				checkLength(len);
+				if(end - offset - Frame.HEADER_SIZE >= len){
+					int t = buffer[offset] & 0xff;
+					int tp = buffer[offset + 2] & 0xff;
+					frame(t, buffer[offset + 1] & 0xff, tp, wanted(t, tp),
+							buffer, offset + Frame.HEADER_SIZE, len);
+					offset += Frame.HEADER_SIZE + len;
+					continue;
+				}
+			}
+
+			//Collect the header
+			if(headerPos < Frame.HEADER_SIZE){
+				int n = Math.min(Frame.HEADER_SIZE - headerPos, end - offset);
+				System.arraycopy(buffer, offset, header, headerPos, n);
+				headerPos += n;
+				offset += n;
+				if(headerPos < Frame.HEADER_SIZE) return;
+
+				type = header[0] & 0xff;
+				flags = header[1] & 0xff;
+				topic = header[2] & 0xff;
+				length = Frame.getInt(header, 3);
+				checkLength(length);
+				skip = !wanted(type, topic);
+				if(!skip && payload.length < length){
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+				payloadPos = 0;
+			}
+
+			//Collect the payload, or just count it when skipping
+			int n = Math.min(length - payloadPos, end - offset);
+			if(!skip) System.arraycopy(buffer, offset, payload, payloadPos, n);
+			payloadPos += n;
+			offset += n;
+
+			if(payloadPos == length){
+				headerPos = 0;
+				frame(type, flags, topic, !skip, payload, 0, length);
+			}
+		}
+	}
+
+
+	/**
+	 * Whether the listener gets the frame whose header was just read.
+	 * The rest of a split message follows the decision on its first frame.
+	 */
+	private boolean wanted(int t, int tp) throws ProtocolException{
+		if(!joining) return listener.wants(t, tp);
+
+		if(t != joinType){
+			throw new ProtocolException("Frame type " + t + " inside a message of type " + joinType);
+		}
+		return !joinSkip;
+	}
+
+
+	/**
+	 * Complete frame: hand it over, or add it to the message being joined
+	 */
+	private void frame(int t, int f, int tp, boolean wanted,
+			byte[] buffer, int offset, int len) throws ProtocolException{
+
+		//Single frame message, the common case
+		if(!joining && (f & Frame.FLAG_MORE) == 0){
+			if(wanted) listener.onFrame(t, f, tp, buffer, offset, len);
+			return;
+		}
+
+		if(!joining){
+			joining = true;
+			joinSkip = !wanted;
+			joinType = t;
+			joinFlags = f & ~Frame.FLAG_MORE;
+			joinTopic = tp;
+			messageLength = 0;
+		}
+
+		if(wanted){
+			if(messageLength + len > Frame.MAX_MESSAGE){
+				throw new ProtocolException("Message too long");
+			}
+			if(message == null || message.length < messageLength + len){
+				int size = Math.max(messageLength + len, 
+						message == null ? 2 * Frame.MAX_PAYLOAD : message.length * 2);
+				byte[] bigger = new byte[Math.min(size, Frame.MAX_MESSAGE)];
+				if(messageLength > 0) System.arraycopy(message, 0, bigger, 0, messageLength);
+				message = bigger;
+			}
+			System.arraycopy(buffer, offset, message, messageLength, len);
+			messageLength += len;
+		}
+
+		if((f & Frame.FLAG_MORE) == 0){
+			joining = false;
+			if(wanted) listener.onFrame(joinType, joinFlags, joinTopic, message, 0, messageLength);
+		}
+	}
+
+
+	/**
+	 * Where the next message starts in a chunk about to be fed, counting
+	 * from the current state: offset if the reader is between messages,
+	 * -1 if the current message goes on past the chunk. Lets a recording
+	 * begin on a boundary instead of in the middle of a frame.
+	 */
+	public int messageStart(byte[] buffer, int offset, int count){
+
+		int end = offset + count;
+		boolean more = joining;
+
+		//Rest of the current frame
+		if(headerPos > 0){
+			int rest;
+			if(headerPos < Frame.HEADER_SIZE){
+				int n = Frame.HEADER_SIZE - headerPos;
+				if(end - offset < n) return -1;
+				byte[] h = new byte[Frame.HEADER_SIZE];
+				System.arraycopy(header, 0, h, 0, headerPos);
+				System.arraycopy(buffer, offset, h, headerPos, n);
+				offset += n;
+				more = (h[1] & Frame.FLAG_MORE) != 0;
+				rest = Frame.getInt(h, 3);
+			}else{
+				more = (flags & Frame.FLAG_MORE) != 0;
+				rest = length - payloadPos;
+			}
+			if(rest < 0 || end - offset < rest) return -1;
+			offset += rest;
+		}
+
+		//Remaining frames of a split message
+		while(more){
+			if(end - offset < Frame.HEADER_SIZE) return -1;
+			int len = Frame.getInt(buffer, offset + 3);
+			if(len < 0 || end - offset - Frame.HEADER_SIZE < len) return -1;
+			more = (buffer[offset + 1] & Frame.FLAG_MORE) != 0;
+			offset += Frame.HEADER_SIZE + len;
+		}
+		return offset;
+	}
+
+
+	/**
+	 * Forget any partial frame, e.g. when the connection is reset
+	 */
+	public void reset(){
+		headerPos = 0;
+		payloadPos = 0;
+		joining = false;
+	}
+
+
+	private static void checkLength(int length) throws ProtocolException{
+		if(length < 0 || length > Frame.MAX_PAYLOAD){
+			throw new ProtocolException("Bad frame length: " + length);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.example.bluetooth;
+
+
+/**
+ *
+ *	Fixed size histogram of latencies in nanoseconds. Buckets are powers
+ *	of two split in 8 linear sub-buckets, so percentiles are within 12.5%
+ *	of the real value from 1us to hours. Recording does not allocate.
+ */
+
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long total;
+	private long max;
+
+
+	public synchronized void record(long nanos){
+		if(nanos < 0) nanos = 0;
+		counts[index(nanos)]++;
+		total++;
+		if(nanos > max) max = nanos;
+	}
+
+
+	public synchronized long getCount(){
+		return total;
+	}
+
+	public synchronized long getMax(){
+		return max;
+	}
+
+
+	/**
+	 * Upper bound of the bucket holding the given percentile (0-100)
+	 */
+	public synchronized long getPercentile(double percentile){
+
+		if(total == 0) return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += counts[i];
+			if(seen >= rank && counts[i] > 0) return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+
+	public synchronized void reset(){
+		for(int i = 0; i < BUCKETS; i++){
+			counts[i] = 0;
+		}
+		total = 0;
+		max = 0;
+	}
+
+
+	private static int index(long nanos){
+		if(nanos < SUB_BUCKETS) return (int) nanos;
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exp - 3)) & (SUB_BUCKETS - 1);
+		return (exp - 2) * SUB_BUCKETS + sub;
+	}
+
+
+	private static long upperBound(int index){
+		if(index < SUB_BUCKETS) return index;
+		int exp = index / SUB_BUCKETS + 2;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exp - 3)) - 1;
+	}
+}
@@ -0,0 +1,231 @@
+package com.example.bluetooth;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ *
+ *	Tunes the write chunk size and the read buffer size of one connection
+ *	from what is measured on it.
+ *
+ *	Writes: every chunk size (power of two between the limits) is tried
+ *	for a window of bytes and the throughput of outStream.write() is
+ *	compared with the previous window. The search keeps moving while it
+ *	improves and turns back when it gets worse; after a few turns it
+ *	settles on the best size seen. Sizes whose mean write latency goes
+ *	over the latency budget are not kept, they would hold the other
+ *	writers back for too long. Once settled, the throughput is still
+ *	watched: if it moves away from the settled value for a few windows
+ *	in a row (other traffic, distance, interference) the search starts
+ *	again from the current size.
+ *
+ *	Reads: the buffer grows when most reads fill it and shrinks when
+ *	reads use less than a quarter of it.
+ *
+ *	The result is saved per device address and used as the starting
+ *	point of the next connection to that device, which searches again
+ *	from there.
+ */
+
+public class LinkTuner {
+
+	//Debugging
+	private static final String tag = "LinkTuner";
+	private static final boolean D = BuildConfig.DEBUG;
+
+	public static final String PREFS_NAME = "link_tuning";
+
+	private static final int WINDOW_BYTES = 32 * 1024;
+	private static final int READ_WINDOW = 64;
+	private static final int MAX_TURNS = 3;
+	private static final long LATENCY_BUDGET_NANOS = 50 * 1000 * 1000L;
+	
+	//Re-probe after this many windows off the settled throughput by DRIFT
+	private static final double DRIFT = 0.25;
+	private static final int DRIFT_WINDOWS = 3;
+
+
+	private final SharedPreferences prefs;
+	private final String address;
+	private final int minChunk;
+	private final int maxChunk;
+	private final int minRead;
+	private final int maxRead;
+
+	//Write side, called under the ConnectedThread write lock
+	private volatile int chunkSize;
+	private int direction = 1;
+	private int turns;
+	private boolean settled;
+	private long windowBytes;
+	private long windowNanos;
+	private int windowWrites;
+	private double lastThroughput;
+	private double bestThroughput;
+	private int bestChunk;
+	private double settledThroughput;
+	private int driftWindows;
+
+	//Read side, called on the ConnectedThread
+	private volatile int readSize;
+	private int reads;
+	private int fullReads;
+	private long readBytes;
+
+
+	/**
+	 * Constructor. Starts from the values saved for this address, if any.
+	 */
+	public LinkTuner(SharedPreferences prefs, String address,
+			int minChunk, int maxChunk, int minRead, int maxRead){
+
+		this.prefs = prefs;
+		this.address = address;
+		this.minChunk = minChunk;
+		this.maxChunk = maxChunk;
+		this.minRead = minRead;
+		this.maxRead = maxRead;
+
+		this.chunkSize = clamp(prefs.getInt(address + "/chunk", 1024), minChunk, maxChunk);
+		this.readSize = clamp(prefs.getInt(address + "/read", 1024), minRead, maxRead);
+		this.bestChunk = chunkSize;
+	}
+
+
+	public int getChunkSize(){
+		return chunkSize;
+	}
+
+	public int getReadSize(){
+		return readSize;
+	}
+
+	public boolean isSettled(){
+		return settled;
+	}
+
+
+	/**
+	 * One outStream.write() of count bytes took nanos
+	 */
+	public void onWrite(int count, long nanos){
+
+		windowBytes += count;
+		windowNanos += nanos;
+		windowWrites++;
+
+		if(windowBytes < WINDOW_BYTES || windowNanos == 0) return;
+
+		double throughput = (double) windowBytes / windowNanos;
+		long meanNanos = windowNanos / windowWrites;
+		windowBytes = 0;
+		windowNanos = 0;
+		windowWrites = 0;
+
+		if(settled){
+			watch(throughput);
+			return;
+		}
+
+		if(meanNanos <= LATENCY_BUDGET_NANOS && throughput > bestThroughput){
+			bestThroughput = throughput;
+			bestChunk = chunkSize;
+		}
+
+		//Worse than the previous size, or too slow per write: turn back
+		if(throughput < lastThroughput || meanNanos > LATENCY_BUDGET_NANOS){
+			direction = -direction;
+			turns++;
+		}
+		lastThroughput = throughput;
+
+		int next = direction > 0 ? chunkSize * 2 : chunkSize / 2;
+		if(next < minChunk || next > maxChunk){
+			direction = -direction;
+			turns++;
+			next = direction > 0 ? chunkSize * 2 : chunkSize / 2;
+		}
+
+		if(turns >= MAX_TURNS){
+			settled = true;
+			settledThroughput = 0;
+			driftWindows = 0;
+			chunkSize = bestChunk;
+			if(D) Log.d(tag, address + " settled on chunk " + chunkSize);
+			save();
+		}else{
+			chunkSize = clamp(next, minChunk, maxChunk);
+		}
+	}
+
+
+	/**
+	 * Settled: search again if the link is no longer what it was
+	 */
+	private void watch(double throughput){
+
+		//First window at the chosen size is the reference
+		if(settledThroughput == 0){
+			settledThroughput = throughput;
+			return;
+		}
+
+		double ratio = throughput / settledThroughput;
+		if(ratio > 1 - DRIFT && ratio < 1 + DRIFT){
+			driftWindows = 0;
+			return;
+		}
+		if(++driftWindows < DRIFT_WINDOWS) return;
+
+		if(D) Log.d(tag, address + " throughput changed, probing again from " + chunkSize);
+		settled = false;
+		turns = 0;
+		direction = 1;
+		lastThroughput = 0;
+		bestThroughput = 0;
+		bestChunk = chunkSize;
+	}
+
+
+	/**
+	 * One inStream.read() returned count bytes
+	 */
+	public void onRead(int count){
+
+		reads++;
+		readBytes += count;
+		if(count >= readSize) fullReads++;
+
+		if(reads < READ_WINDOW) return;
+
+		if(fullReads * 2 > reads && readSize < maxRead){
+			readSize = Math.min(readSize * 2, maxRead);
+		}else if(readBytes / reads < readSize / 4 && readSize > minRead){
+			readSize = Math.max(readSize / 2, minRead);
+		}
+		reads = 0;
+		fullReads = 0;
+		readBytes = 0;
+	}
+
+
+	/**
+	 * Remember the current sizes for the next connection to this device
+	 */
+	public void save(){
+		SharedPreferences.Editor editor = prefs.edit();
+		if(settled){
+			editor.putInt(address + "/chunk", chunkSize);
+		}else if(bestThroughput > 0){
+			editor.putInt(address + "/chunk", bestChunk);
+		}
+		editor.putInt(address + "/read", readSize);
+		editor.apply();
+	}
+
+
+	private static int clamp(int value, int min, int max){
+		return Math.max(min, Math.min(max, value));
+	}
+}
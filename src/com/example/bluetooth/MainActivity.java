@@ -1,5 +1,12 @@
 package com.example.bluetooth;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Set;
 
@@ -10,10 +17,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
@@ -28,12 +38,13 @@ import com.example.bluetooth.BluetoothService.ConnectedThread;
 public class MainActivity extends Activity {
 
 	//Debugging
-	private static final boolean D = true;
+	private static final boolean D = BuildConfig.DEBUG;
 	private static final String TAG = "Main Activity";
 
 	//Views
    private ToggleButton toggleButton;
    private ListView lv;
+   private ListView logView;
    private EditText message;
    private Button send_button;
    
@@ -50,6 +61,24 @@ public class MainActivity extends Activity {
    private BluetoothService bluetoothService;
    
    private String connectedDeviceName;
+   
+   //Bluetooth setup, off the main thread until the first frame is drawn
+   private HandlerThread startupThread;
+   private boolean resumed;
+   
+   //Set in onDestroy(): a late onBluetoothReady() must not keep the service
+   private boolean destroyed;
+   
+   //Reused for every send. The bytes are not: the MESSAGE_WRITE echo of
+   //a send may be handled after the next one (a key click is dispatched
+   //before queued messages), so each send gets its own buffer.
+   private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+		   .onMalformedInput(CodingErrorAction.REPLACE)
+		   .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   
+   //Sent and received messages
+   private MessageLog messageLog;
+   private static final int LOG_CAPACITY = 500;
       
    
    //Key names received from BluetoothService Handler
@@ -71,16 +100,16 @@ public class MainActivity extends Activity {
    protected void onCreate(Bundle savedInstanceState) {
       super.onCreate(savedInstanceState);
       
+      StartupTimer.begin();
       if(D) Log.d(TAG,"** ON CREATE **");
       
       setContentView(R.layout.activity_main);
       
       this.ctx=this;      
       
-      BA = BluetoothAdapter.getDefaultAdapter();
-      
+      //Adapter set by onBluetoothReady()
       toggleButton = (ToggleButton)findViewById(R.id.toggleButton);
-      toggleButton.setChecked(BA.isEnabled());
+      toggleButton.setEnabled(false);
       
       message = (EditText)findViewById(R.id.message);
       
@@ -88,18 +117,23 @@ public class MainActivity extends Activity {
       send_button.setOnClickListener(new View.OnClickListener() {
 		@Override
 		public void onClick(View v) {
-			//Send message
-			byte [] out = message.getText().toString().getBytes();
-			bluetoothService.write(out);
+			//Send message, encoded straight from the EditText contents
+			if(bluetoothService == null) return;
+			bluetoothService.write(encode(message.getText()));
 		}
 	});
       lv = (ListView)findViewById(R.id.list);
+      
+      messageLog = new MessageLog(this, LOG_CAPACITY);
+      logView = (ListView)findViewById(R.id.log);
+      logView.setAdapter(messageLog);
             
       lv.setOnItemClickListener(new OnItemClickListener(){
 			@Override
 			public void onItemClick(AdapterView<?> adapter, View v, int pos,long id) {
 				// TODO Auto-generated method stub
 				
+				if(bluetoothService == null) return;
 				Object[] devices = pairedDevices.toArray();
 				BluetoothDevice device = (BluetoothDevice) devices[pos];
 							
@@ -121,6 +155,98 @@ public class MainActivity extends Activity {
 			}
       });
       
+      //Bluetooth work starts once the first frame is on screen
+      startupThread = new HandlerThread("Startup");
+      startupThread.start();
+      
+      //Not attached yet: this observer is merged into the window's one on
+      //attach and dies, so the listener is removed from the live one
+      logView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener(){
+    	  public boolean onPreDraw(){
+    		  logView.getViewTreeObserver().removeOnPreDrawListener(this);
+    		  StartupTimer.mark(StartupTimer.FIRST_FRAME);
+    		  
+    		  //Posted behind the frame being drawn
+    		  handler.post(new Runnable(){
+    			  public void run(){
+    				  if(startupThread != null){
+    					  new Handler(startupThread.getLooper()).post(startup);
+    				  }
+    			  }
+    		  });
+    		  return true;
+    	  }
+      });
+   }
+   
+   
+   //Adapter, paired devices, service and server socket, on the Startup
+   //thread (a Looper thread, as getDefaultAdapter() needs on old releases)
+   private final Runnable startup = new Runnable(){
+	   public void run(){
+		   final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		   StartupTimer.mark(StartupTimer.ADAPTER_READY);
+		   
+		   //No Bluetooth on this device: say so, the toggle stays disabled
+		   if(adapter == null){
+			   runOnUiThread(new Runnable(){
+				   public void run(){
+					   if(destroyed) return;
+					   Toast.makeText(ctx, "Bluetooth not available", Toast.LENGTH_LONG).show();
+				   }
+			   });
+			   return;
+		   }
+		   
+		   final Set<BluetoothDevice> devices = adapter.getBondedDevices();
+		   StartupTimer.mark(StartupTimer.DEVICES_LISTED);
+		   
+		   BluetoothService service = null;
+		   if(adapter.isEnabled()){
+			   service = new BluetoothService(ctx, handler);
+			   service.prepare();
+			   StartupTimer.mark(StartupTimer.SERVICE_READY);
+		   }
+		   
+		   final BluetoothService prepared = service;
+		   runOnUiThread(new Runnable(){
+			   public void run(){
+				   onBluetoothReady(adapter, devices, prepared);
+			   }
+		   });
+	   }
+   };
+   
+   
+   //Background setup done: what onStart() and onResume() could not do yet
+   private void onBluetoothReady(BluetoothAdapter adapter, Set<BluetoothDevice> devices,
+		   BluetoothService service){
+	   
+	   //Finished, or destroyed by a configuration change: the new instance prepares its own
+	   if(destroyed || isFinishing()){
+		   if(service != null) service.stop();
+		   return;
+	   }
+	   
+	   BA = adapter;
+	   toggleButton.setEnabled(true);
+	   toggleButton.setChecked(BA.isEnabled());
+	   showDevices(devices);
+	   
+	   //onStart() may have made one meanwhile: the prepared one would hold its socket
+	   if(bluetoothService == null){
+		   bluetoothService = service;
+	   }else if(service != null){
+		   service.stop();
+	   }
+	   
+	   if(!BA.isEnabled()){
+		   Toast.makeText(this, "Please, enable BT", Toast.LENGTH_LONG).show();
+		   lv.setClickable(false);
+		   send_button.setClickable(false);
+	   }else if(resumed && bluetoothService.getState() == BluetoothService.STATE_NOCONNECTION){
+		   bluetoothService.start();
+	   }
    }
 
    //Enabling/Disabling BT
@@ -152,9 +278,15 @@ public class MainActivity extends Activity {
    }
    
    
-   //Filling list with device's names
+   //Filling list with device's names, once startup found an adapter
    public void list(View view){
-      pairedDevices = BA.getBondedDevices();
+      if(BA == null) return;
+      showDevices(BA.getBondedDevices());
+   }
+   
+   
+   private void showDevices(Set<BluetoothDevice> devices){
+      pairedDevices = devices;
 
       ArrayList<String> list = new ArrayList<String>();
       
@@ -209,6 +341,9 @@ public class MainActivity extends Activity {
 	   
 	   if(D) Log.d(TAG, "** ONSTART **");
 	   
+	   //Still starting up, see onBluetoothReady()
+	   if(BA == null) return;
+	   
 	   list(lv);
 	   
 	   //Starts Bluetooth Service
@@ -226,6 +361,9 @@ public class MainActivity extends Activity {
 	   
 	   if(D) Log.d(TAG,"** ONRESUME **");
 	   
+	   resumed = true;
+	   if(BA == null) return;
+	   
 	   if(!BA.isEnabled()){
 		   lv.setClickable(false);
 		   send_button.setClickable(false);
@@ -240,6 +378,24 @@ public class MainActivity extends Activity {
 	   }
    }
    
+   @Override
+   public synchronized void onPause(){
+	   super.onPause();
+	   resumed = false;
+   }
+   
+   @Override
+   protected void onDestroy(){
+	   super.onDestroy();
+	   
+	   if(D) Log.d(TAG,"** ONDESTROY **");
+	   
+	   destroyed = true;
+	   startupThread.quit();
+	   startupThread = null;
+	   messageLog.close();
+   }
+   
    @Override
    public boolean onCreateOptionsMenu(Menu menu) {
       // Inflate the menu; this adds items to the action bar if it is present.
@@ -247,7 +403,59 @@ public class MainActivity extends Activity {
       return true;
    }
    
+   @Override
+   public boolean onOptionsItemSelected(MenuItem item) {
+	   switch (item.getItemId()) {
+	   case R.id.action_diagnostics:
+		   //Connection statistics, including one-way latencies, in the log
+		   messageLog.append(StartupTimer.getSummary());
+		   if(bluetoothService != null){
+			   messageLog.append(bluetoothService.getDiagnostics());
+		   }
+		   return true;
+	   case R.id.action_trace:
+		   toggleTrace();
+		   return true;
+	   default:
+		   return super.onOptionsItemSelected(item);
+	   }
+   }
+   
+   
+   
    
+   //Start the event trace, or stop it and dump it to a file
+   private void toggleTrace(){
+	   if(!EventTrace.isEnabled()){
+		   EventTrace.setEnabled(true);
+		   messageLog.append("Tracing...");
+		   return;
+	   }
+	   
+	   EventTrace.setEnabled(false);
+	   File dir = getExternalFilesDir(null);
+	   final File file = new File(dir != null ? dir : getFilesDir(), "bt-trace.bin");
+	   
+	   //File I/O off the main thread
+	   new Thread("TraceDump"){
+		   public void run(){
+			   String result;
+			   try{
+				   EventTrace.dump(file);
+				   result = "Trace written to " + file;
+			   }catch(IOException e){
+				   Log.e(TAG, "Trace dump failed", e);
+				   result = "Trace dump failed";
+			   }
+			   final String text = result;
+			   runOnUiThread(new Runnable(){
+				   public void run(){
+					   messageLog.append(text);
+				   }
+			   });
+		   }
+	   }.start();
+   }
    
    
    // The Handler that gets information back from the BluetoothChatService
@@ -275,18 +483,14 @@ public class MainActivity extends Activity {
                }
                break;*/
            case MESSAGE_WRITE:
-               byte[] writeBuf = (byte[]) msg.obj;
-               // construct a string from the buffer
-               String writeMessage = new String(writeBuf);
-               Toast.makeText(getApplicationContext(), writeMessage,
-                       Toast.LENGTH_SHORT).show();
+               String writeMessage = writtenText(msg);
+               messageLog.append("Me: " + writeMessage);
                break;
            case MESSAGE_READ:
                byte[] readBuf = (byte[]) msg.obj;
                // construct a string from the valid bytes in the buffer
                String readMessage = new String(readBuf, 0, msg.arg1);
-               Toast.makeText(getApplicationContext(), readMessage,
-                       Toast.LENGTH_SHORT).show();
+               messageLog.append("Remote: " + readMessage);
                break;/*
            case MESSAGE_DEVICE_NAME:
                // save the connected device's name
@@ -302,5 +506,39 @@ public class MainActivity extends Activity {
            }
        }
    };
+   
+   
+   // encode text into a new buffer sized for the worst case, so it never
+   // has to grow and encode again
+   private ByteBuffer encode(CharSequence text){
+	   ByteBuffer out = ByteBuffer.allocate((int) Math.ceil(text.length() * encoder.maxBytesPerChar()));
+	   encoder.reset();
+	   encoder.encode(CharBuffer.wrap(text), out, true);
+	   encoder.flush(out);
+	   out.flip();
+	   return out;
+   }
+   
+   
+   // construct a string from a MESSAGE_WRITE: a byte[] slice (length in
+   // arg1, offset in arg2) or the ByteBuffers of a gather write, joined
+   // first so a character split between two buffers decodes whole
+   private static String writtenText(Message msg){
+	   if(msg.obj instanceof byte[]){
+		   return new String((byte[]) msg.obj, msg.arg2, msg.arg1);
+	   }
+	   
+	   ByteBuffer[] pieces = (ByteBuffer[]) msg.obj;
+	   if(pieces.length == 1){
+		   return Charset.defaultCharset().decode(pieces[0]).toString();
+	   }
+	   
+	   ByteBuffer joined = ByteBuffer.allocate(msg.arg1);
+	   for(ByteBuffer piece : pieces){
+		   joined.put(piece);
+	   }
+	   joined.flip();
+	   return Charset.defaultCharset().decode(joined).toString();
+   }
 
 }
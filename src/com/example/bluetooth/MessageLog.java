@@ -0,0 +1,308 @@
+package com.example.bluetooth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+
+/**
+ *
+ *	Adapter for the on-screen log of sent and received messages.
+ *
+ *	append() only queues the text: queued entries are added to the list
+ *	in one batch at most once per frame, with a single
+ *	notifyDataSetChanged(). Only the last capacity entries are kept in
+ *	memory; older ones are spilled to a file in the cache directory and
+ *	read back a page at a time when the list scrolls up to them. Rows are
+ *	recycled by the ListView, so a long log costs no more views than fit
+ *	on the screen.
+ *
+ *	The file is only touched on a background thread, in order: writes of
+ *	spilled entries, then page reads. A row whose page is not loaded yet
+ *	shows a placeholder and is refreshed when the page arrives.
+ *
+ *	Must be used from the main thread.
+ */
+
+public class MessageLog extends BaseAdapter {
+
+	//Debugging
+	private static final String tag = "MessageLog";
+
+	private static final long FRAME_MS = 16;
+	private static final int PAGE_SIZE = 64;
+	private static final int MAX_TEXT = 4096;
+	private static final String LOADING = "\u2026";
+
+
+	private final LayoutInflater inflater;
+	private final Handler handler = new Handler();
+
+	//Last entries, position p is at recent[p % capacity]
+	private final String[] recent;
+	private int count;
+
+	//Appended since the last frame
+	private final ArrayList<String> pending = new ArrayList<String>();
+	private boolean flushPosted;
+
+	//Page of spilled entries read back, and the one being read
+	private String[] page = new String[0];
+	private int pageStart = -1;
+	private int pageCount;
+	private int loadingStart = -1;
+	private boolean closed;
+
+	//Older entries, only used on the I/O thread: file offset of every
+	//spilled position
+	private final HandlerThread ioThread = new HandlerThread("MessageLog");
+	private final Handler io;
+	private final File spillFile;
+	private RandomAccessFile spill;
+	private long[] offsets = new long[PAGE_SIZE];
+	private int spilled;
+	private long spillEnd;
+
+
+	/**
+	 * Constructor
+	 */
+	public MessageLog(Context context, int capacity){
+		this.inflater = LayoutInflater.from(context);
+		this.recent = new String[capacity];
+		this.spillFile = new File(context.getCacheDir(), "message_log");
+
+		ioThread.start();
+		io = new Handler(ioThread.getLooper());
+		io.post(new Runnable(){
+			public void run(){
+				try{
+					spill = new RandomAccessFile(spillFile, "rw");
+					spill.setLength(0);
+				}catch(IOException e){
+					Log.e(tag, "Spill file not created, older entries will be lost", e);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Queue an entry, shown on the next frame
+	 */
+	public void append(String text){
+		if(text.length() > MAX_TEXT) text = text.substring(0, MAX_TEXT);
+		pending.add(text);
+		if(!flushPosted){
+			flushPosted = true;
+			handler.postDelayed(flush, FRAME_MS);
+		}
+	}
+
+
+	/**
+	 * Release the spill file
+	 */
+	public void close(){
+		closed = true;
+		handler.removeCallbacks(flush);
+		io.post(new Runnable(){
+			public void run(){
+				if(spill != null){
+					try{
+						spill.close();
+					}catch(IOException e){
+						Log.e(tag, "close() of spill file failed", e);
+					}
+					spill = null;
+				}
+				spillFile.delete();
+				Looper.myLooper().quit();
+			}
+		});
+	}
+
+
+	@Override
+	public int getCount(){
+		return count;
+	}
+
+
+	@Override
+	public String getItem(int position){
+
+		if(position >= count - recent.length){
+			return recent[position % recent.length];
+		}
+
+		if(pageStart < 0 || position < pageStart || position >= pageStart + pageCount){
+			int start = position - position % PAGE_SIZE;
+			if(loadingStart != start){
+				loadingStart = start;
+				io.post(new LoadPage(start));
+			}
+			return LOADING;
+		}
+		return page[position - pageStart];
+	}
+
+
+	@Override
+	public long getItemId(int position){
+		return position;
+	}
+
+
+	@Override
+	public boolean hasStableIds(){
+		return true;
+	}
+
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent){
+
+		TextView row = (TextView) convertView;
+		if(row == null){
+			row = (TextView) inflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+		}
+		row.setText(getItem(position));
+		return row;
+	}
+
+
+	/**
+	 * Add the pending entries, handing the ones they push out of memory
+	 * to the I/O thread
+	 */
+	private final Runnable flush = new Runnable(){
+		public void run(){
+			flushPosted = false;
+
+			ArrayList<String> evicted = null;
+			for(int i = 0; i < pending.size(); i++){
+				int slot = count % recent.length;
+
+				//Entry being overwritten goes to the file
+				if(count >= recent.length){
+					if(evicted == null) evicted = new ArrayList<String>();
+					evicted.add(recent[slot]);
+				}
+				recent[slot] = pending.get(i);
+				count++;
+			}
+			if(evicted != null) io.post(new Spill(evicted));
+
+			pending.clear();
+			notifyDataSetChanged();
+		}
+	};
+
+
+
+
+	/**
+	 * Append entries to the spill file, on the I/O thread
+	 */
+	private class Spill implements Runnable {
+		private final ArrayList<String> entries;
+
+		Spill(ArrayList<String> entries){
+			this.entries = entries;
+		}
+
+		public void run(){
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			try{
+				for(String entry : entries){
+					if(spilled == offsets.length){
+						long[] grown = new long[offsets.length * 2];
+						System.arraycopy(offsets, 0, grown, 0, spilled);
+						offsets = grown;
+					}
+					offsets[spilled++] = spillEnd + out.size();
+					out.writeUTF(entry);
+				}
+
+				if(spill != null){
+					spill.seek(spillEnd);
+					spill.write(bytes.toByteArray());
+				}
+			}catch(IOException e){
+				Log.e(tag, "Spill failed", e);
+			}
+			spillEnd += out.size();
+		}
+	}
+
+
+
+
+	/**
+	 * Read back PAGE_SIZE spilled entries on the I/O thread, then show
+	 * them on the main thread
+	 */
+	private class LoadPage implements Runnable {
+		private final int start;
+
+		LoadPage(int start){
+			this.start = start;
+		}
+
+		public void run(){
+			final String[] entries = new String[PAGE_SIZE];
+			int end = Math.min(start + PAGE_SIZE, spilled);
+			int n = 0;
+
+			if(spill != null && start < end){
+				try{
+					long from = offsets[start];
+					long to = end < spilled ? offsets[end] : spillEnd;
+					byte[] data = new byte[(int) (to - from)];
+					spill.seek(from);
+					spill.readFully(data);
+
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+					for(int i = 0; i < end - start; i++){
+						entries[i] = in.readUTF();
+					}
+					n = end - start;
+				}catch(IOException e){
+					Log.e(tag, "Could not read spilled entries", e);
+				}
+			}
+
+			final int loaded = n;
+			handler.post(new Runnable(){
+				public void run(){
+					if(closed) return;
+					page = entries;
+					pageStart = start;
+					pageCount = loaded;
+					//A failed read is not retried on every getView()
+					if(loadingStart == start && loaded > 0) loadingStart = -1;
+					notifyDataSetChanged();
+				}
+			});
+		}
+	}
+}
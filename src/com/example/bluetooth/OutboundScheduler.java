@@ -0,0 +1,426 @@
+package com.example.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.Log;
+
+import com.example.bluetooth.BluetoothService.ConnectedThread;
+
+
+/**
+ *
+ *	Shares the outbound link between several producers. Each producer
+ *	queues its messages and one sender thread picks them with deficit
+ *	round robin: every turn a producer may send up to its quantum of
+ *	bytes, so bandwidth is split by quantum whatever the message sizes.
+ *
+ *	Token buckets cap the rate of each producer and of each peer. A
+ *	message waits in its queue until both buckets have the tokens, and
+ *	its bytes are counted as throttled. Rates can be changed at any time.
+ *	The peer cap only covers the producers: frames written to the link
+ *	directly are not metered.
+ *
+ *	Nothing is picked while there is no link, so messages queued before
+ *	the connection stay queued and are not charged to any bucket.
+ *
+ *	Messages are queued without copying: the caller must not modify the
+ *	data until it has been sent.
+ */
+
+public class OutboundScheduler {
+
+	//Debugging
+	private static final String tag = "OutboundScheduler";
+
+	public static final int DEFAULT_QUANTUM = 1024;
+
+	//Wait for a link at most this long, in case onLinkUp() was missed
+	private static final long LINK_WAIT_MS = 1000;
+
+
+	private final BluetoothService service;
+
+	//Guarded by this
+	private final ArrayList<Producer> producers = new ArrayList<Producer>();
+	private final HashMap<String, TokenBucket> peers = new HashMap<String, TokenBucket>();
+	private int next;
+	private boolean turn;
+	private Thread sender;
+
+
+	/**
+	 * Constructor
+	 */
+	public OutboundScheduler(BluetoothService service){
+		this.service = service;
+	}
+
+
+	public synchronized Producer openProducer(String name, int quantum){
+		Producer producer = new Producer(name, quantum > 0 ? quantum : DEFAULT_QUANTUM);
+		producers.add(producer);
+		return producer;
+	}
+
+
+	public synchronized void closeProducer(Producer producer){
+		producers.remove(producer);
+		producer.queue.clear();
+	}
+
+
+	public synchronized List<Producer> getProducers(){
+		return new ArrayList<Producer>(producers);
+	}
+
+
+	/**
+	 * Cap the bytes per second the producers send to a device, 0 for no
+	 * limit. Writes that bypass the scheduler are not counted.
+	 */
+	public synchronized void setScheduledPeerRate(String address, long bytesPerSecond, int burst){
+		if(bytesPerSecond <= 0){
+			peers.remove(address);
+		}else{
+			TokenBucket bucket = peers.get(address);
+			if(bucket == null){
+				bucket = new TokenBucket();
+				peers.put(address, bucket);
+			}
+			bucket.setRate(bytesPerSecond, burst);
+		}
+		notifyAll();
+	}
+
+
+	/**
+	 * A link is up: wake the sender if it was waiting for one
+	 */
+	public synchronized void onLinkUp(){
+		notifyAll();
+	}
+
+
+	/**
+	 * Stop the sender thread and drop every queued message
+	 */
+	public void stop(){
+		Thread t;
+		synchronized(this){
+			t = sender;
+			sender = null;
+			for(Producer producer : producers){
+				producer.queue.clear();
+			}
+			notifyAll();
+		}
+		if(t != null) t.interrupt();
+	}
+
+
+	private synchronized void enqueue(Producer producer, Item item){
+		producer.queue.add(item);
+		producer.queued += item.size;
+		if(sender == null){
+			sender = new Thread("OutboundScheduler"){
+				public void run(){
+					sendLoop();
+				}
+			};
+			sender.start();
+		}
+		notifyAll();
+	}
+
+
+	private void sendLoop(){
+		try{
+			while(true){
+				Item item;
+
+				//Outside our lock: the service calls stop() holding its own
+				ConnectedThread link = service.connectedThread();
+
+				synchronized(this){
+					if(sender != Thread.currentThread()) return;
+
+					//Keep everything queued until there is somewhere to send it
+					if(link == null){
+						wait(LINK_WAIT_MS);
+						continue;
+					}
+
+					TokenBucket peer = peers.get(link.getAddress());
+
+					long now = System.nanoTime();
+					long delay = pick(peer, now);
+					if(delay != 0){
+						//Nothing queued (-1), or every head waiting for tokens
+						if(delay < 0) wait();
+						else wait(Math.max(1, delay / 1000000));
+						continue;
+					}
+					item = chosen;
+					chosen = null;
+				}
+
+				if(item.buffers != null){
+					link.write(item.topic, item.buffers);
+				}else{
+					link.write(item.topic, item.data, item.offset, item.size);
+				}
+			}
+		}catch(InterruptedException e){
+			Log.d(tag, "sender stopped");
+		}
+	}
+
+
+	//Result of pick(), guarded by this
+	private Item chosen;
+
+
+	/**
+	 * Deficit round robin over the producers with something queued.
+	 * Sets chosen and returns 0, or returns the nanos until a head can
+	 * get its tokens, or -1 if nothing is queued.
+	 */
+	private long pick(TokenBucket peer, long now){
+
+		long wait = -1;
+		int n = producers.size();
+		boolean growing = false;
+
+		for(int visited = 0; n > 0; visited++){
+
+			//A message bigger than the quantum takes several rounds
+			if(visited == n){
+				if(!growing) break;
+				visited = 0;
+				growing = false;
+			}
+
+			if(next >= n){
+				next = 0;
+				turn = false;
+			}
+			Producer p = producers.get(next);
+			Item head = p.queue.peek();
+
+			if(head == null){
+				p.deficit = 0;
+				next++;
+				turn = false;
+				continue;
+			}
+
+			long w = Math.max(p.bucket.nanosUntil(head.size, now),
+					peer != null ? peer.nanosUntil(head.size, now) : 0);
+			if(w > 0){
+				//Rate limited: try the other producers meanwhile
+				if(!head.throttled){
+					head.throttled = true;
+					p.throttled += head.size;
+				}
+				wait = wait < 0 ? w : Math.min(wait, w);
+				next++;
+				turn = false;
+				continue;
+			}
+
+			//Each turn adds one quantum, spent until the head does not fit
+			if(!turn){
+				p.deficit += p.quantum;
+				turn = true;
+			}
+			if(p.deficit < head.size){
+				growing = true;
+				next++;
+				turn = false;
+				continue;
+			}
+
+			p.queue.poll();
+			p.deficit -= head.size;
+			p.queued -= head.size;
+			p.sent += head.size;
+			p.bucket.take(head.size, now);
+			if(peer != null) peer.take(head.size, now);
+			chosen = head;
+			return 0;
+		}
+		return wait;
+	}
+
+
+
+
+	/**
+	 * A source of outbound messages with its own queue, share and rate
+	 */
+	public class Producer {
+
+		private final String name;
+		private final ArrayDeque<Item> queue = new ArrayDeque<Item>();
+		private final TokenBucket bucket = new TokenBucket();
+		private int quantum;
+		private int deficit;
+
+		//Statistics, in bytes
+		private long queued;
+		private long sent;
+		private long throttled;
+
+
+		private Producer(String name, int quantum){
+			this.name = name;
+			this.quantum = quantum;
+		}
+
+
+		public String getName(){
+			return name;
+		}
+
+
+		/**
+		 * Queue length bytes of data about topic
+		 */
+		public void write(int topic, byte[] data, int offset, int length){
+			enqueue(this, new Item(topic, data, offset, length, null));
+		}
+
+
+		public void write(byte[] data){
+			write(Frame.TOPIC_DEFAULT, data, 0, data.length);
+		}
+
+
+		/**
+		 * Queue the remaining bytes of buffers as one message
+		 */
+		public void write(int topic, ByteBuffer... buffers){
+			int size = 0;
+			for(ByteBuffer buffer : buffers){
+				size += buffer.remaining();
+			}
+			enqueue(this, new Item(topic, null, 0, size, buffers));
+		}
+
+
+		/**
+		 * Cap this producer to bytesPerSecond, 0 for no limit
+		 */
+		public void setRate(long bytesPerSecond, int burst){
+			synchronized(OutboundScheduler.this){
+				bucket.setRate(bytesPerSecond, burst);
+				OutboundScheduler.this.notifyAll();
+			}
+		}
+
+
+		/**
+		 * Relative share of the link when several producers are busy
+		 */
+		public void setQuantum(int quantum){
+			synchronized(OutboundScheduler.this){
+				this.quantum = quantum > 0 ? quantum : DEFAULT_QUANTUM;
+			}
+		}
+
+
+		public long getQueuedBytes(){
+			synchronized(OutboundScheduler.this){
+				return queued;
+			}
+		}
+
+		public long getSentBytes(){
+			synchronized(OutboundScheduler.this){
+				return sent;
+			}
+		}
+
+		/**
+		 * Bytes that had to wait for their rate limit
+		 */
+		public long getThrottledBytes(){
+			synchronized(OutboundScheduler.this){
+				return throttled;
+			}
+		}
+	}
+
+
+
+
+	/**
+	 * A queued message
+	 */
+	private static class Item {
+		final int topic;
+		final byte[] data;
+		final int offset;
+		final int size;
+		final ByteBuffer[] buffers;
+		boolean throttled;
+
+		Item(int topic, byte[] data, int offset, int size, ByteBuffer[] buffers){
+			this.topic = topic;
+			this.data = data;
+			this.offset = offset;
+			this.size = size;
+			this.buffers = buffers;
+		}
+	}
+
+
+
+
+	/**
+	 * Rate limit: tokens (bytes) refill at rate per second up to burst.
+	 * A message bigger than burst may go once the bucket is full.
+	 */
+	private static class TokenBucket {
+		private long rate;
+		private int burst;
+		private double tokens;
+		private long last;
+
+
+		void setRate(long bytesPerSecond, int burst){
+			this.rate = bytesPerSecond;
+			this.burst = Math.max(1, burst);
+			this.tokens = Math.min(tokens, this.burst);
+		}
+
+
+		long nanosUntil(int size, long now){
+			if(rate <= 0) return 0;
+			refill(now);
+			double needed = Math.min(size, burst) - tokens;
+			return needed <= 0 ? 0 : (long) Math.ceil(needed * 1e9 / rate);
+		}
+
+
+		void take(int size, long now){
+			if(rate <= 0) return;
+			refill(now);
+			tokens -= size;
+		}
+
+
+		private void refill(long now){
+			if(last != 0){
+				tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			}else{
+				tokens = burst;
+			}
+			last = now;
+		}
+	}
+}
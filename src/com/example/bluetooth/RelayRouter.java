@@ -0,0 +1,444 @@
+package com.example.bluetooth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.bluetooth.BluetoothService.ConnectedThread;
+
+
+/**
+ *
+ *	Multi-hop forwarding between nodes that are not directly connected.
+ *	Every relay node periodically floods an announcement of itself; each
+ *	node remembers through which link and in how many hops it heard every
+ *	origin, and relayed frames follow those routes.
+ *
+ *	Announcement payload: origin (8) seq (4) hops (1)
+ *	Relay payload:        src (8) dst (8) seq (4) ttl (1) type (1) data
+ *
+ *	Relayed frames and announcements are queued to a writer thread per
+ *	outgoing link, they never go through the UI Handler. A reader never
+ *	writes to another link itself: waiting on that link's flow control
+ *	would stop it draining its own socket, and with a cycle in the
+ *	network two relay nodes would wait on each other. A full queue drops
+ *	the frame instead. Frames addressed to this node are dispatched like
+ *	any frame read from a direct link.
+ */
+
+public class RelayRouter {
+
+	//Debugging
+	private static final String tag = "RelayRouter";
+	private static final boolean D = BuildConfig.DEBUG;
+
+	public static final int ANNOUNCE_SIZE = 13;
+	public static final int HEAD_SIZE = 22;
+	public static final int MAX_HOPS = 8;
+
+	private static final long ANNOUNCE_INTERVAL_MS = 5000;
+	private static final long ROUTE_EXPIRY_MS = 3 * ANNOUNCE_INTERVAL_MS;
+	private static final int SEEN_SIZE = 256;
+	private static final int FORWARD_QUEUE = 64;
+
+
+	private final BluetoothService service;
+	private final long localAddress;
+
+	//Routing table: origin address -> Route
+	private final HashMap<Long, Route> routes = new HashMap<Long, Route>();
+
+	//Writer of every link we forward or announce to
+	private final HashMap<ConnectedThread, Forwarder> forwarders = new HashMap<ConnectedThread, Forwarder>();
+
+	//Duplicate suppression: last (origin, seq) pairs seen
+	private final long[] seenOrigin = new long[SEEN_SIZE];
+	private final int[] seenSeq = new int[SEEN_SIZE];
+	private int seenNext;
+
+	//Announcements and relayed frames share the sequence space
+	private int nextSeq;
+	private int announceSeq;
+
+	private HandlerThread timerThread;
+	private Handler timer;
+
+	//Forwarding statistics
+	private long forwarded;
+	private long dropped;
+	private long forwardNanosTotal;
+	private long forwardNanosMax;
+
+
+	/**
+	 * Constructor
+	 */
+	public RelayRouter(BluetoothService service, String localAddress){
+		this.service = service;
+		this.localAddress = parseAddress(localAddress);
+	}
+
+
+	/**
+	 * "AA:BB:CC:DD:EE:FF" -> 0xAABBCCDDEEFF
+	 */
+	public static long parseAddress(String address){
+		if(address == null) return 0;
+		return Long.parseLong(address.replace(":", ""), 16);
+	}
+
+
+	/**
+	 * Start announcing this node and forwarding frames
+	 */
+	public synchronized void start(){
+		if(timerThread != null) return;
+
+		timerThread = new HandlerThread("RelayRouter");
+		timerThread.start();
+		timer = new Handler(timerThread.getLooper());
+		timer.post(announceTask);
+	}
+
+
+	/**
+	 * Stop announcing and forwarding, forget every route
+	 */
+	public synchronized void stop(){
+		if(timerThread == null) return;
+
+		timerThread.quit();
+		timerThread = null;
+		timer = null;
+		routes.clear();
+
+		for(Forwarder forwarder : forwarders.values()){
+			forwarder.interrupt();
+		}
+		forwarders.clear();
+	}
+
+
+	public synchronized boolean isRunning(){
+		return timerThread != null;
+	}
+
+
+	/**
+	 * New direct link: announce ourselves right away
+	 */
+	public void onLinkUp(ConnectedThread link){
+		if(isRunning()) sendAnnounce(link);
+	}
+
+
+	/**
+	 * Direct link closed: drop every route going through it, and its writer
+	 */
+	public synchronized void onLinkDown(ConnectedThread link){
+		Iterator<Route> it = routes.values().iterator();
+		while(it.hasNext()){
+			if(it.next().via == link) it.remove();
+		}
+
+		Forwarder forwarder = forwarders.remove(link);
+		if(forwarder != null) forwarder.interrupt();
+	}
+
+
+	public synchronized boolean hasRoute(String address){
+		return routes.containsKey(parseAddress(address));
+	}
+
+	public synchronized int getRouteCount(){
+		return routes.size();
+	}
+
+
+	/**
+	 * Send a frame to any node of the relay network
+	 */
+	public boolean send(String address, int type, byte[] data, int offset, int length){
+
+		long dst = parseAddress(address);
+		ConnectedThread via;
+		byte[] head = new byte[HEAD_SIZE];
+
+		synchronized(this){
+			Route route = routes.get(dst);
+			if(route == null) return false;
+			via = route.via;
+			putHead(head, localAddress, dst, ++nextSeq, MAX_HOPS, type);
+			remember(localAddress, nextSeq);
+		}
+		return via.writeFrame(Frame.TYPE_RELAY, head, HEAD_SIZE, data, offset, length);
+	}
+
+
+	/**
+	 * Relay frame read from a direct link, called on its ConnectedThread
+	 */
+	void onRelay(ConnectedThread from, byte[] payload, int offset, int length){
+
+		if(length < HEAD_SIZE) return;
+
+		long received = System.nanoTime();
+		long src = Frame.getLong(payload, offset);
+		long dst = Frame.getLong(payload, offset + 8);
+		int seq = Frame.getInt(payload, offset + 16);
+		int ttl = payload[offset + 20] & 0xff;
+		int type = payload[offset + 21] & 0xff;
+		ConnectedThread via;
+
+		synchronized(this){
+			if(!remember(src, seq)) return;
+
+			//Addressed to us: dispatch like a frame from a direct link
+			if(dst == localAddress){
+				via = null;
+			}else{
+				Route route = routes.get(dst);
+				if(ttl <= 1 || route == null || route.via == from || timer == null){
+					dropped++;
+					return;
+				}
+				via = route.via;
+			}
+		}
+
+		if(via == null){
+			//Same subscription check as frames read from a direct link
+			if(from.wants(type, Frame.TOPIC_DEFAULT)){
+				from.onFrame(type, 0, Frame.TOPIC_DEFAULT, payload, offset + HEAD_SIZE, length - HEAD_SIZE);
+			}
+			return;
+		}
+
+		//Forward with the same head but one hop less. The reader reuses
+		//its buffer: the queue gets a copy.
+		byte[] frame = new byte[length];
+		System.arraycopy(payload, offset, frame, 0, length);
+		frame[20] = (byte) (ttl - 1);
+		forward(via, Frame.TYPE_RELAY, frame, received);
+	}
+
+
+	/**
+	 * Announcement read from a direct link
+	 */
+	void onAnnounce(ConnectedThread from, byte[] payload, int offset, int length){
+
+		if(length < ANNOUNCE_SIZE) return;
+
+		long origin = Frame.getLong(payload, offset);
+		int seq = Frame.getInt(payload, offset + 8);
+		int hops = (payload[offset + 12] & 0xff) + 1;
+
+		synchronized(this){
+			if(origin == localAddress || !remember(origin, seq)) return;
+
+			//Keep the shortest fresh route
+			long now = SystemClock.elapsedRealtime();
+			Route route = routes.get(origin);
+			if(route == null || route.via == from || hops <= route.hops
+					|| now - route.updated > ROUTE_EXPIRY_MS){
+				if(route == null){
+					route = new Route();
+					routes.put(origin, route);
+				}
+				route.via = from;
+				route.hops = hops;
+				route.updated = now;
+			}
+
+			if(timer == null || hops >= MAX_HOPS) return;
+		}
+
+		//Flood to the other neighbours
+		byte[] announce = new byte[ANNOUNCE_SIZE];
+		System.arraycopy(payload, offset, announce, 0, ANNOUNCE_SIZE);
+		announce[12] = (byte) hops;
+		for(ConnectedThread link : service.getLinks()){
+			if(link != from) forward(link, Frame.TYPE_ANNOUNCE, announce, 0);
+		}
+	}
+
+
+	/**
+	 * Queue a frame to the writer of a link. received is the read time
+	 * of a relayed frame, 0 for an announcement.
+	 */
+	private void forward(ConnectedThread link, int type, byte[] frame, long received){
+
+		Forwarder forwarder;
+		synchronized(this){
+			//Closed before onLinkDown(): no writer may outlive the link
+			if(timer == null || link.isClosed()) return;
+			forwarder = forwarders.get(link);
+			if(forwarder == null){
+				forwarder = new Forwarder(link);
+				forwarders.put(link, forwarder);
+				forwarder.start();
+			}
+		}
+
+		if(!forwarder.queue.offer(new Forward(type, frame, received))){
+			synchronized(this){
+				dropped++;
+			}
+		}
+	}
+
+
+	/**
+	 * Mean per-hop forwarding latency, from frame read to forward written,
+	 * time in the queue included
+	 */
+	public synchronized long getMeanForwardNanos(){
+		return forwarded == 0 ? 0 : forwardNanosTotal / forwarded;
+	}
+
+	public synchronized long getMaxForwardNanos(){
+		return forwardNanosMax;
+	}
+
+	public synchronized long getForwardedCount(){
+		return forwarded;
+	}
+
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+
+
+	private synchronized void recordForward(long nanos){
+		forwarded++;
+		forwardNanosTotal += nanos;
+		if(nanos > forwardNanosMax) forwardNanosMax = nanos;
+	}
+
+
+	/**
+	 * Returns false if (origin, seq) was already seen
+	 */
+	private boolean remember(long origin, int seq){
+		for(int i = 0; i < SEEN_SIZE; i++){
+			if(seenSeq[i] == seq && seenOrigin[i] == origin) return false;
+		}
+		seenOrigin[seenNext] = origin;
+		seenSeq[seenNext] = seq;
+		seenNext = (seenNext + 1) % SEEN_SIZE;
+		return true;
+	}
+
+
+	private void sendAnnounce(ConnectedThread link){
+		byte[] announce = new byte[ANNOUNCE_SIZE];
+		synchronized(this){
+			Frame.putLong(announce, 0, localAddress);
+			Frame.putInt(announce, 8, announceSeq);
+		}
+		forward(link, Frame.TYPE_ANNOUNCE, announce, 0);
+	}
+
+
+	private static void putHead(byte[] head, long src, long dst, int seq, int ttl, int type){
+		Frame.putLong(head, 0, src);
+		Frame.putLong(head, 8, dst);
+		Frame.putInt(head, 16, seq);
+		head[20] = (byte) ttl;
+		head[21] = (byte) type;
+	}
+
+
+	/**
+	 * Periodic announcement and route expiry
+	 */
+	private final Runnable announceTask = new Runnable(){
+		public void run(){
+			synchronized(RelayRouter.this){
+				if(timer == null) return;
+				announceSeq = ++nextSeq;
+
+				long now = SystemClock.elapsedRealtime();
+				Iterator<Route> it = routes.values().iterator();
+				while(it.hasNext()){
+					if(now - it.next().updated > ROUTE_EXPIRY_MS) it.remove();
+				}
+				timer.postDelayed(this, ANNOUNCE_INTERVAL_MS);
+			}
+
+			if(D) Log.d(tag, "announce, routes: " + getRouteCount());
+			for(ConnectedThread link : service.getLinks()){
+				sendAnnounce(link);
+			}
+		}
+	};
+
+
+
+
+	/**
+	 * Writes the frames queued for one link, so only this thread waits
+	 * on its flow control
+	 */
+	private class Forwarder extends Thread {
+
+		final ConnectedThread link;
+		final ArrayBlockingQueue<Forward> queue = new ArrayBlockingQueue<Forward>(FORWARD_QUEUE);
+
+
+		Forwarder(ConnectedThread link){
+			super("RelayForwarder");
+			this.link = link;
+		}
+
+
+		public void run(){
+			try{
+				while(true){
+					Forward f = queue.take();
+					boolean sent = link.writeFrame(f.type, null, 0, f.frame, 0, f.frame.length);
+					if(sent && f.received != 0) recordForward(System.nanoTime() - f.received);
+				}
+			}catch(InterruptedException e){
+				if(D) Log.d(tag, "forwarder stopped");
+			}
+		}
+	}
+
+
+
+
+	/**
+	 * A frame waiting for its link
+	 */
+	private static class Forward {
+		final int type;
+		final byte[] frame;
+		final long received;
+
+		Forward(int type, byte[] frame, long received){
+			this.type = type;
+			this.frame = frame;
+			this.received = received;
+		}
+	}
+
+
+
+
+	/**
+	 * Next hop towards an origin
+	 */
+	private static class Route {
+		ConnectedThread via;
+		int hops;
+		long updated;
+	}
+}
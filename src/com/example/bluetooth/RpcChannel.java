@@ -0,0 +1,317 @@
+package com.example.bluetooth;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.example.bluetooth.BluetoothService.ConnectedThread;
+
+
+/**
+ *
+ *	Request/response layer on top of the BluetoothService link. Every
+ *	request gets a correlation id that the peer copies into its response,
+ *	so any number of requests can be in flight and replies are matched
+ *	in whatever order they come back.
+ *
+ *	Request and response frames carry the id in the first 4 bytes of the
+ *	payload, followed by the application data.
+ *
+ *	Each node numbers its calls from 1, so with several links (relay
+ *	mode) two peers can use the same id. A request received is given a
+ *	local id that remembers its link and the peer id, and the response
+ *	goes back on that link.
+ */
+
+public class RpcChannel {
+
+	//Debugging
+	private static final String tag = "RpcChannel";
+
+	//Failure reasons - ENUM
+	public static final int FAILURE_TIMEOUT = 1;
+	public static final int FAILURE_CANCELLED = 2;
+	public static final int FAILURE_CONNECTION_LOST = 3;
+	public static final int FAILURE_NOT_CONNECTED = 4;
+
+	public static final int ID_SIZE = 4;
+
+
+	/**
+	 * Result of a call. Methods run on the ConnectedThread reading the
+	 * response, on the timeout thread, or on the thread cancelling it.
+	 */
+	public interface Callback {
+		void onResponse(byte[] response);
+		void onFailure(int reason);
+	}
+
+
+	/**
+	 * Serves requests coming from the peer, one at a time in arrival
+	 * order on the RpcRequests thread, never on the ConnectedThread: a
+	 * reply written from the reader would wait on the write lock while
+	 * nobody drains the socket. data is a copy the handler may keep.
+	 * Answer with BluetoothService.reply() and the given local id, now
+	 * or later from any thread.
+	 */
+	public interface RequestHandler {
+		void onRequest(int id, byte[] data, int offset, int length);
+	}
+
+
+	private final BluetoothService service;
+	private final ConcurrentHashMap<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	//Requests received and not answered yet, by local id
+	private final ConcurrentHashMap<Integer, Incoming> incoming = new ConcurrentHashMap<Integer, Incoming>();
+	private final AtomicInteger nextLocalId = new AtomicInteger();
+	private volatile RequestHandler requestHandler;
+
+	private HandlerThread timeoutThread;
+	private Handler timeoutHandler;
+	private HandlerThread requestThread;
+	private Handler requestQueue;
+
+
+	/**
+	 * Constructor
+	 */
+	public RpcChannel(BluetoothService service){
+		this.service = service;
+	}
+
+
+	public void setRequestHandler(RequestHandler handler){
+		this.requestHandler = handler;
+	}
+
+
+	/**
+	 * Number of requests waiting for a response
+	 */
+	public int getPendingCount(){
+		return pending.size();
+	}
+
+
+	/**
+	 * Send a request without waiting for the previous ones to complete
+	 */
+	public Call call(byte[] request, int offset, int length, long timeoutMs, Callback callback){
+
+		Call call = new Call(nextId.incrementAndGet(), callback);
+		byte[] head = new byte[ID_SIZE];
+		Frame.putInt(head, 0, call.id);
+
+		//Register before writing: the response may arrive before write() returns
+		pending.put(call.id, call);
+		if(timeoutMs > 0){
+			timeoutHandler().postDelayed(call, timeoutMs);
+		}
+
+		if(!service.writeFrame(Frame.TYPE_REQUEST, head, ID_SIZE, request, offset, length)){
+			call.fail(FAILURE_NOT_CONNECTED);
+		}
+		return call;
+	}
+
+
+	/**
+	 * Answer the request with the given local id, on the link it came
+	 * from. False if it was already answered or its link is gone.
+	 */
+	public boolean reply(int id, byte[] response, int offset, int length){
+		Incoming request = incoming.remove(id);
+		if(request == null) return false;
+
+		byte[] head = new byte[ID_SIZE];
+		Frame.putInt(head, 0, request.peerId);
+		return request.link.writeFrame(Frame.TYPE_RESPONSE, head, ID_SIZE, response, offset, length);
+	}
+
+
+	/**
+	 * Request frame received from the peer, on the ConnectedThread.
+	 * Handed to the RpcRequests thread so the reader keeps reading.
+	 */
+	void onRequest(ConnectedThread link, byte[] payload, int offset, int length){
+
+		if(length < ID_SIZE) return;
+
+		int peerId = Frame.getInt(payload, offset);
+		final RequestHandler handler = requestHandler;
+
+		if(handler == null){
+			Log.w(tag, "No request handler, dropping request " + peerId);
+			return;
+		}
+
+		final int id = nextLocalId.incrementAndGet();
+		incoming.put(id, new Incoming(link, peerId));
+
+		//The reader reuses its buffer: hand over a copy
+		final byte[] data = new byte[length - ID_SIZE];
+		System.arraycopy(payload, offset + ID_SIZE, data, 0, data.length);
+
+		requestQueue().post(new Runnable(){
+			public void run(){
+				handler.onRequest(id, data, 0, data.length);
+			}
+		});
+	}
+
+
+	/**
+	 * Response frame received from the peer
+	 */
+	void onResponse(byte[] payload, int offset, int length){
+
+		if(length < ID_SIZE) return;
+
+		Call call = pending.remove(Frame.getInt(payload, offset));
+
+		//Late response of a call that already timed out or was cancelled
+		if(call == null) return;
+
+		cancelTimeout(call);
+		byte[] response = new byte[length - ID_SIZE];
+		System.arraycopy(payload, offset + ID_SIZE, response, 0, response.length);
+		call.callback.onResponse(response);
+	}
+
+
+	/**
+	 * Fail every outstanding call, e.g. when the connection is lost
+	 */
+	void failAll(int reason){
+		Iterator<Call> it = pending.values().iterator();
+		while(it.hasNext()){
+			it.next().fail(reason);
+		}
+	}
+
+
+	/**
+	 * A link is gone: its requests can no longer be answered
+	 */
+	void onLinkDown(ConnectedThread link){
+		Iterator<Incoming> it = incoming.values().iterator();
+		while(it.hasNext()){
+			if(it.next().link == link) it.remove();
+		}
+	}
+
+
+	/**
+	 * Fail outstanding calls, stop the timeout and request threads
+	 */
+	synchronized void close(){
+		failAll(FAILURE_CONNECTION_LOST);
+		incoming.clear();
+		if(timeoutThread != null){
+			timeoutThread.quit();
+			timeoutThread = null;
+			timeoutHandler = null;
+		}
+		if(requestThread != null){
+			requestThread.quit();
+			requestThread = null;
+			requestQueue = null;
+		}
+	}
+
+
+	private synchronized Handler timeoutHandler(){
+		if(timeoutHandler == null){
+			timeoutThread = new HandlerThread("RpcTimeouts");
+			timeoutThread.start();
+			timeoutHandler = new Handler(timeoutThread.getLooper());
+		}
+		return timeoutHandler;
+	}
+
+	private synchronized Handler requestQueue(){
+		if(requestQueue == null){
+			requestThread = new HandlerThread("RpcRequests");
+			requestThread.start();
+			requestQueue = new Handler(requestThread.getLooper());
+		}
+		return requestQueue;
+	}
+
+	private synchronized void cancelTimeout(Call call){
+		if(timeoutHandler != null) timeoutHandler.removeCallbacks(call);
+	}
+
+
+
+
+	/**
+	 * A request received, until it is answered
+	 */
+	private static class Incoming {
+		final ConnectedThread link;
+		final int peerId;
+
+		Incoming(ConnectedThread link, int peerId){
+			this.link = link;
+			this.peerId = peerId;
+		}
+	}
+
+
+
+
+	/**
+	 *
+	 *	An outstanding request. Runs as its own timeout task.
+	 */
+
+	public class Call implements Runnable {
+
+		private final int id;
+		private final Callback callback;
+
+
+		private Call(int id, Callback callback){
+			this.id = id;
+			this.callback = callback;
+		}
+
+
+		public int getId(){
+			return id;
+		}
+
+
+		/**
+		 * Cancel the call. A response arriving later is ignored.
+		 */
+		public void cancel(){
+			fail(FAILURE_CANCELLED);
+		}
+
+
+		/**
+		 * Timeout expired
+		 */
+		public void run(){
+			fail(FAILURE_TIMEOUT);
+		}
+
+
+		private void fail(int reason){
+			//Only the first of response/timeout/cancel completes the call
+			if(pending.remove(id, this)){
+				cancelTimeout(this);
+				callback.onFailure(reason);
+			}
+		}
+	}
+}
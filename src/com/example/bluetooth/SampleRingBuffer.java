@@ -0,0 +1,213 @@
+package com.example.bluetooth;
+
+
+/**
+ *
+ *	Receiver side of the sample streaming mode. The ConnectedThread
+ *	decodes TYPE_SAMPLES frames straight into a preallocated ring of
+ *	floats; consumers read it through their own Reader, either at full
+ *	rate or as min/max/mean per bucket of samples.
+ *
+ *	Single producer, lock free. The producer never waits: a Reader that
+ *	falls too far behind skips to the oldest samples still safe to read.
+ *	A quarter of the ring is kept as margin for the frame being written,
+ *	so a frame of more than capacity / 4 samples is dropped (and counted
+ *	as lost) rather than torn. Nothing is allocated after construction.
+ */
+
+public class SampleRingBuffer {
+
+	private final int channels;
+	private final int capacity;
+	private final int window;
+	private final int maxBatch;
+	private final float[] data;
+
+	//Samples written so far, published after the data
+	private volatile long written;
+
+	//Sender sequence of the next expected sample, to count gaps
+	private int nextSeq;
+	private long lost;
+
+
+	/**
+	 * Constructor. capacity is in samples.
+	 */
+	public SampleRingBuffer(int channels, int capacity){
+		if(channels < 1 || channels > 255 || capacity < 4){
+			throw new IllegalArgumentException("Bad ring: " + channels + " channels, " + capacity + " samples");
+		}
+		this.channels = channels;
+		this.capacity = capacity;
+		this.maxBatch = capacity / 4;
+		this.window = capacity - maxBatch;
+		this.data = new float[channels * capacity];
+	}
+
+
+	public int getChannels(){
+		return channels;
+	}
+
+	public long getWrittenCount(){
+		return written;
+	}
+
+	/**
+	 * Samples the sender produced but never arrived
+	 */
+	public long getLostCount(){
+		return lost;
+	}
+
+
+	public Reader newReader(){
+		return new Reader();
+	}
+
+
+	/**
+	 * Decode a TYPE_SAMPLES payload. Producer thread only.
+	 */
+	void write(byte[] payload, int offset, int length){
+
+		if(length < SampleStream.HEAD_SIZE) return;
+
+		int seq = Frame.getInt(payload, offset);
+		int count = ((payload[offset + 4] & 0xff) << 8) | (payload[offset + 5] & 0xff);
+		int frameChannels = payload[offset + 6] & 0xff;
+
+		if(frameChannels != channels
+				|| length < SampleStream.HEAD_SIZE + count * channels * 4) return;
+
+		if(written > 0 && seq - nextSeq > 0) lost += seq - nextSeq;
+		nextSeq = seq + count;
+
+		//Would overwrite samples readers may be copying
+		if(count > maxBatch){
+			lost += count;
+			return;
+		}
+
+		long w = written;
+		int pos = offset + SampleStream.HEAD_SIZE;
+		for(int s = 0; s < count; s++){
+			int base = (int) ((w + s) % capacity) * channels;
+			for(int c = 0; c < channels; c++){
+				data[base + c] = Float.intBitsToFloat(Frame.getInt(payload, pos));
+				pos += 4;
+			}
+		}
+		written = w + count;
+	}
+
+
+
+
+	/**
+	 * A consumer position in the ring
+	 */
+	public class Reader {
+
+		private long position;
+		private long skipped;
+
+
+		private Reader(){
+			position = written;
+		}
+
+
+		public int available(){
+			return (int) Math.min(written - position, window);
+		}
+
+
+		/**
+		 * Samples lost because this reader fell behind
+		 */
+		public long getSkippedCount(){
+			return skipped;
+		}
+
+
+		/**
+		 * Copy up to maxSamples full rate samples into dst, channels
+		 * floats per sample. Returns the number of samples read.
+		 */
+		public int read(float[] dst, int maxSamples){
+
+			long end = catchUp();
+			int count = (int) Math.min(end - position, maxSamples);
+
+			for(int s = 0; s < count; s++){
+				int base = (int) ((position + s) % capacity) * channels;
+				System.arraycopy(data, base, dst, s * channels, channels);
+			}
+
+			return commit(count);
+		}
+
+
+		/**
+		 * Reduce whole buckets of bucketSize samples to their min, max
+		 * and mean per channel (channels floats per bucket in each
+		 * array). Returns the number of buckets read.
+		 */
+		public int readDownsampled(int bucketSize, int maxBuckets,
+				float[] min, float[] max, float[] mean){
+
+			long end = catchUp();
+			int buckets = (int) Math.min((end - position) / bucketSize, maxBuckets);
+
+			for(int b = 0; b < buckets; b++){
+				for(int c = 0; c < channels; c++){
+					float lo = Float.POSITIVE_INFINITY;
+					float hi = Float.NEGATIVE_INFINITY;
+					float sum = 0;
+					for(int s = 0; s < bucketSize; s++){
+						long p = position + (long) b * bucketSize + s;
+						float v = data[(int) (p % capacity) * channels + c];
+						if(v < lo) lo = v;
+						if(v > hi) hi = v;
+						sum += v;
+					}
+					min[b * channels + c] = lo;
+					max[b * channels + c] = hi;
+					mean[b * channels + c] = sum / bucketSize;
+				}
+			}
+
+			int count = commit(buckets * bucketSize);
+			return count / bucketSize;
+		}
+
+
+		/**
+		 * Skip what the producer may be overwriting, returns the end
+		 */
+		private long catchUp(){
+			long end = written;
+			if(end - position > window){
+				skipped += end - window - position;
+				position = end - window;
+			}
+			return end;
+		}
+
+
+		/**
+		 * Advance past count samples, unless the producer got to some
+		 * of them while they were read
+		 */
+		private int commit(int count){
+			if(written - position > window){
+				catchUp();
+				return 0;
+			}
+			position += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.example.bluetooth;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+
+/**
+ *
+ *	Sender side of the sample streaming mode. Fixed size samples (a few
+ *	float channels, e.g. accelerometer x/y/z) are packed into a
+ *	preallocated frame and sent as one TYPE_SAMPLES frame when the batch
+ *	is full or older than the latency limit, instead of one write per
+ *	sample.
+ *
+ *	Payload: first sample seq (4) count (2) channels (1) samples
+ *	         (count * channels big endian floats)
+ *
+ *	A batch must fit in one frame, timestamp included: HEAD_SIZE +
+ *	batchSize * channels * 4 bytes at most MAX_PAYLOAD - TIMESTAMP_SIZE.
+ *	A timer thread flushes a batch that reaches maxLatencyMs without new
+ *	samples; close() stops it.
+ *
+ *	Nothing is allocated after construction. Feed it from a single
+ *	thread, e.g. the sensor callback; the timer flush is synchronized
+ *	with it.
+ */
+
+public class SampleStream {
+
+	public static final int HEAD_SIZE = 7;
+
+
+	private final BluetoothService service;
+	private final int channels;
+	private final int batchSize;
+	private final long maxLatencyNanos;
+
+	private final byte[] frame;
+	private final HandlerThread timerThread;
+	private final Handler timer;
+	private int count;
+	private int seq;
+	private long batchStart;
+
+	//Samples lost because the link was down
+	private long dropped;
+
+
+	/**
+	 * Constructor
+	 */
+	public SampleStream(BluetoothService service, int channels, int batchSize, long maxLatencyMs){
+		if(channels < 1 || channels > 255 || batchSize < 1 || batchSize > 0xffff
+				|| Frame.TIMESTAMP_SIZE + HEAD_SIZE + (long) batchSize * channels * 4 > Frame.MAX_PAYLOAD){
+			throw new IllegalArgumentException("Batch of " + batchSize + " samples of " 
+					+ channels + " channels does not fit in a frame");
+		}
+		this.service = service;
+		this.channels = channels;
+		this.batchSize = batchSize;
+		this.maxLatencyNanos = maxLatencyMs * 1000000L;
+		this.frame = new byte[HEAD_SIZE + batchSize * channels * 4];
+
+		if(maxLatencyMs > 0){
+			timerThread = new HandlerThread("SampleStream");
+			timerThread.start();
+			timer = new Handler(timerThread.getLooper());
+		}else{
+			timerThread = null;
+			timer = null;
+		}
+	}
+
+
+	public int getChannels(){
+		return channels;
+	}
+
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+
+
+	/**
+	 * Add one sample: channels values of sample starting at offset
+	 */
+	public synchronized void add(float[] sample, int offset){
+
+		if(count == 0){
+			batchStart = System.nanoTime();
+			if(timer != null) timer.postDelayed(latencyFlush, maxLatencyNanos / 1000000);
+		}
+
+		int pos = HEAD_SIZE + count * channels * 4;
+		for(int i = 0; i < channels; i++){
+			Frame.putInt(frame, pos, Float.floatToRawIntBits(sample[offset + i]));
+			pos += 4;
+		}
+		count++;
+
+		if(count == batchSize || System.nanoTime() - batchStart >= maxLatencyNanos){
+			flush();
+		}
+	}
+
+
+	/**
+	 * Send the samples of the current batch now
+	 */
+	public synchronized void flush(){
+
+		if(count == 0) return;
+		if(timer != null) timer.removeCallbacks(latencyFlush);
+
+		Frame.putInt(frame, 0, seq);
+		frame[4] = (byte) (count >>> 8);
+		frame[5] = (byte) count;
+		frame[6] = (byte) channels;
+
+		if(!service.writeFrame(Frame.TYPE_SAMPLES, null, 0,
+				frame, 0, HEAD_SIZE + count * channels * 4)){
+			dropped += count;
+		}
+		seq += count;
+		count = 0;
+	}
+
+
+	/**
+	 * Send what is left and stop the timer
+	 */
+	public void close(){
+		flush();
+		if(timerThread != null) timerThread.quit();
+	}
+
+
+	/**
+	 * The batch reached maxLatencyMs without filling up
+	 */
+	private final Runnable latencyFlush = new Runnable(){
+		public void run(){
+			flush();
+		}
+	};
+}
@@ -0,0 +1,92 @@
+package com.example.bluetooth;
+
+import android.util.Log;
+
+
+/**
+ *
+ *	Cold start milestones, in milliseconds since MainActivity.onCreate().
+ *	Each mark is also an EventTrace STARTUP event (a is the mark, b the
+ *	microseconds since begin) so it lines up with the connection events.
+ *
+ *	The marks are kept per process: the last start is what getSummary()
+ *	shows, and what is logged once the service is ready to accept.
+ */
+
+public final class StartupTimer {
+
+	//Debugging
+	private static final boolean D = BuildConfig.DEBUG;
+	private static final String tag = "StartupTimer";
+
+	//Marks - ENUM, index in NAMES
+	public static final int CREATE = 0;
+	public static final int FIRST_FRAME = 1;
+	public static final int ADAPTER_READY = 2;
+	public static final int DEVICES_LISTED = 3;
+	public static final int SERVICE_READY = 4;
+	public static final int ACCEPT_READY = 5;
+
+	private static final String[] NAMES = {
+		"create", "firstFrame", "adapterReady", "devicesListed", "serviceReady", "acceptReady"
+	};
+
+
+	private static long begin;
+	private static final long[] marks = new long[NAMES.length];
+
+
+	private StartupTimer(){
+	}
+
+
+	/**
+	 * Start timing a new launch, forgetting the previous marks
+	 */
+	public static synchronized void begin(){
+		begin = System.nanoTime();
+		for(int i = 0; i < marks.length; i++){
+			marks[i] = -1;
+		}
+		mark(CREATE);
+	}
+
+
+	/**
+	 * Record a milestone, only the first time it is reached
+	 */
+	public static void mark(int id){
+
+		long since;
+		synchronized(StartupTimer.class){
+			if(begin == 0 || marks[id] >= 0) return;
+			since = System.nanoTime() - begin;
+			marks[id] = since;
+		}
+		EventTrace.event(EventTrace.STARTUP, id, since / 1000);
+
+		if(D && id == ACCEPT_READY) Log.d(tag, getSummary());
+	}
+
+
+	/**
+	 * Milliseconds from onCreate() to a mark, -1 if not reached
+	 */
+	public static synchronized long getMillis(int id){
+		return marks[id] < 0 ? -1 : marks[id] / 1000000;
+	}
+
+
+	/**
+	 * One line with every mark reached
+	 */
+	public static synchronized String getSummary(){
+		StringBuilder out = new StringBuilder("startup ms:");
+		for(int i = 1; i < marks.length; i++){
+			if(marks[i] >= 0){
+				out.append(' ').append(NAMES[i]).append('=').append(marks[i] / 1000000);
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package com.example.bluetooth;
+
+
+/**
+ *
+ *	Set of the 256 frame topics, checked on the ConnectedThread for every
+ *	frame header. Reads are lock free: changes replace the whole bit set.
+ *
+ *	A filter starts with every topic in it, so nothing is dropped until
+ *	someone unsubscribes.
+ */
+
+public class TopicFilter {
+
+	public static final int TOPICS = 256;
+	public static final int SIZE = TOPICS / 8;
+
+	private volatile long[] bits = { -1L, -1L, -1L, -1L };
+
+
+	public boolean contains(int topic){
+		return (bits[(topic >>> 6) & 3] & (1L << topic)) != 0;
+	}
+
+
+	public boolean containsAll(){
+		long[] b = bits;
+		return (b[0] & b[1] & b[2] & b[3]) == -1L;
+	}
+
+
+	public synchronized void add(int topic){
+		long[] b = bits.clone();
+		b[(topic >>> 6) & 3] |= 1L << topic;
+		bits = b;
+	}
+
+
+	public synchronized void remove(int topic){
+		long[] b = bits.clone();
+		b[(topic >>> 6) & 3] &= ~(1L << topic);
+		bits = b;
+	}
+
+
+	/**
+	 * Keep only the given topics
+	 */
+	public synchronized void set(int... topics){
+		long[] b = new long[4];
+		for(int topic : topics){
+			b[(topic >>> 6) & 3] |= 1L << topic;
+		}
+		bits = b;
+	}
+
+
+	public synchronized void addAll(){
+		bits = new long[]{ -1L, -1L, -1L, -1L };
+	}
+
+
+	/**
+	 * SIZE bytes, as sent in a TYPE_SUBSCRIBE frame
+	 */
+	public void toBytes(byte[] dst, int offset){
+		long[] b = bits;
+		for(int i = 0; i < 4; i++){
+			Frame.putLong(dst, offset + i * 8, b[i]);
+		}
+	}
+
+
+	public synchronized void fromBytes(byte[] src, int offset){
+		long[] b = new long[4];
+		for(int i = 0; i < 4; i++){
+			b[i] = Frame.getLong(src, offset + i * 8);
+		}
+		bits = b;
+	}
+}
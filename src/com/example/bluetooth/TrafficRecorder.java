@@ -0,0 +1,243 @@
+package com.example.bluetooth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+
+/**
+ *
+ *	Records every chunk read from and written to the connections into a
+ *	compact binary capture, for TrafficReplayer.
+ *
+ *	  "BTCAP002"
+ *	  records: nanoTime (8) link (4) kind (1) direction (1) length (4) bytes
+ *
+ *	Each direction of each link is a stream of its own. DATA records of
+ *	a stream only come between its START and its END or DROP marker, and
+ *	START is always written on a message boundary, so a reader created
+ *	at START never sees the middle of a frame. After a DROP the stream
+ *	starts again with a new START at the next message boundary.
+ *
+ *	The I/O threads only copy the bytes into an in-memory buffer; full
+ *	buffers are written to the file by a background thread. If that
+ *	thread falls behind and no free buffer is left, records are dropped
+ *	whole (and counted) rather than making the connection wait.
+ */
+
+public class TrafficRecorder {
+
+	//Debugging
+	private static final String tag = "TrafficRecorder";
+
+	public static final String MAGIC = "BTCAP002";
+	public static final int RECORD_HEADER = 18;
+
+	//Directions - ENUM
+	public static final int IN = 0;
+	public static final int OUT = 1;
+
+	//Record kinds - ENUM
+	public static final int DATA = 0;
+	public static final int START = 1;
+	public static final int END = 2;
+	public static final int DROP = 3;
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int BUFFERS = 4;
+
+
+	private final OutputStream out;
+	private final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(BUFFERS);
+	private final ArrayBlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(BUFFERS + 1);
+	private final Thread writer;
+
+	//Buffer being filled, guarded by this
+	private byte[] active;
+	private int position;
+	private long dropped;
+	private boolean closed;
+
+	//Streams with a DROP marker still to write, link and direction
+	private final ArrayList<int[]> pendingDrops = new ArrayList<int[]>();
+
+
+	/**
+	 * Constructor. Starts recording to file.
+	 */
+	public TrafficRecorder(File file) throws IOException{
+
+		out = new FileOutputStream(file);
+		out.write(MAGIC.getBytes("US-ASCII"));
+
+		for(int i = 1; i < BUFFERS; i++){
+			free.add(new byte[BUFFER_SIZE]);
+		}
+		active = new byte[BUFFER_SIZE];
+
+		writer = new Thread("TrafficRecorder"){
+			public void run(){
+				writeLoop();
+			}
+		};
+		writer.start();
+	}
+
+
+	/**
+	 * A stream starts, on a message boundary. False if the marker could
+	 * not be written: try again at the next boundary.
+	 */
+	public synchronized boolean start(int link, int direction){
+		if(closed) return false;
+		long now = System.nanoTime();
+		return writeDrops(now) && put(now, link, START, direction, null, 0, 0);
+	}
+
+
+	/**
+	 * A stream ends with its connection
+	 */
+	public synchronized void end(int link, int direction){
+		if(closed) return;
+		long now = System.nanoTime();
+		if(writeDrops(now)) put(now, link, END, direction, null, 0, 0);
+	}
+
+
+	/**
+	 * Record length bytes of data of a started stream. False if the
+	 * record was dropped: the stream is over until the next start().
+	 */
+	public boolean record(int link, int direction, byte[] data, int offset, int length){
+
+		long now = System.nanoTime();
+
+		synchronized(this){
+			if(closed) return false;
+			if(writeDrops(now) && put(now, link, DATA, direction, data, offset, length)){
+				return true;
+			}
+
+			dropped++;
+			pendingDrops.add(new int[]{ link, direction });
+			return false;
+		}
+	}
+
+
+	/**
+	 * Records lost because the file could not keep up
+	 */
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+
+
+	/**
+	 * Write what is left and close the file
+	 */
+	public void close(){
+		synchronized(this){
+			if(closed) return;
+			writeDrops(System.nanoTime());
+			closed = true;
+			full.offer(new Chunk(active, position));
+			full.offer(new Chunk(null, 0));
+		}
+		try{
+			writer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * DROP markers owed, before anything else of the same streams
+	 */
+	private boolean writeDrops(long now){
+		while(!pendingDrops.isEmpty()){
+			int[] stream = pendingDrops.get(0);
+			if(!put(now, stream[0], DROP, stream[1], null, 0, 0)) return false;
+			pendingDrops.remove(0);
+		}
+		return true;
+	}
+
+
+	/**
+	 * One whole record, false if there is no room for it
+	 */
+	private boolean put(long now, int link, int kind, int direction, byte[] data, int offset, int length){
+
+		int size = RECORD_HEADER + length;
+		if(BUFFER_SIZE - position < size && (size > BUFFER_SIZE || !swap())) return false;
+
+		Frame.putLong(active, position, now);
+		Frame.putInt(active, position + 8, link);
+		active[position + 12] = (byte) kind;
+		active[position + 13] = (byte) direction;
+		Frame.putInt(active, position + 14, length);
+		if(length > 0) System.arraycopy(data, offset, active, position + RECORD_HEADER, length);
+		position += size;
+		return true;
+	}
+
+
+	/**
+	 * Hand the active buffer to the writer, false if none is free
+	 */
+	private boolean swap(){
+		byte[] next = free.poll();
+		if(next == null) return false;
+
+		full.offer(new Chunk(active, position));
+		active = next;
+		position = 0;
+		return true;
+	}
+
+
+	private void writeLoop(){
+		try{
+			while(true){
+				Chunk chunk = full.take();
+				if(chunk.data == null) break;
+				out.write(chunk.data, 0, chunk.length);
+				free.offer(chunk.data);
+			}
+		}catch(IOException e){
+			Log.e(tag, "Capture write failed", e);
+		}catch(InterruptedException e){
+			Log.e(tag, "Capture interrupted", e);
+		}finally{
+			try{
+				out.close();
+			}catch(IOException e){
+				Log.e(tag, "close() of capture failed", e);
+			}
+		}
+	}
+
+
+
+
+	/**
+	 * Filled part of a buffer
+	 */
+	private static class Chunk {
+		final byte[] data;
+		final int length;
+
+		Chunk(byte[] data, int length){
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
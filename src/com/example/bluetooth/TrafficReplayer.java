@@ -0,0 +1,220 @@
+package com.example.bluetooth;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.HashMap;
+
+
+/**
+ *
+ *	Feeds a TrafficRecorder capture back into FrameReaders, with the
+ *	chunk boundaries of the original reads, at the original speed, N
+ *	times faster, or as fast as possible (speed 0). The capture is loaded
+ *	in memory first, so file reads do not show in the timings.
+ *
+ *	Every recorded link gets its own reader and listener, created by the
+ *	Target. A reader is reset on the START marker of its stream and data
+ *	is skipped between a DROP or END and the next START, so a gap in the
+ *	capture never desynchronizes the framing.
+ *
+ *	Uses no Android classes, so the frame parsing can be benchmarked
+ *	against production traffic on a workstation:
+ *
+ *	  java com.example.bluetooth.TrafficReplayer capture.bin [speed]
+ *
+ *	BluetoothService.replay() feeds the same capture through the real
+ *	frame dispatch on the device.
+ */
+
+public class TrafficReplayer {
+
+	private final File capture;
+
+
+	/**
+	 * Listener for the frames of each recorded link
+	 */
+	public interface Target {
+		FrameReader.Listener listener(int link);
+	}
+
+
+	/**
+	 * Outcome of a replay
+	 */
+	public static class Result {
+		public long records;
+		public long bytes;
+		public long elapsedNanos;
+		public int links;
+
+		//Stream gaps in the capture, data skipped because of them, bad frames
+		public int drops;
+		public long skippedBytes;
+		public int errors;
+
+		//Worst delay behind the scheduled time of a record
+		public long maxLagNanos;
+	}
+
+
+	/**
+	 * Constructor
+	 */
+	public TrafficReplayer(File capture){
+		this.capture = capture;
+	}
+
+
+	/**
+	 * Replay the streams of the given direction into the target
+	 */
+	public Result replay(Target target, int direction, double speed) throws IOException{
+
+		byte[] data = load();
+		Result result = new Result();
+		HashMap<Integer, FrameReader> readers = new HashMap<Integer, FrameReader>();
+		HashMap<Integer, FrameReader> live = new HashMap<Integer, FrameReader>();
+		int pos = TrafficRecorder.MAGIC.length();
+		long first = -1;
+		long start = System.nanoTime();
+
+		while(pos + TrafficRecorder.RECORD_HEADER <= data.length){
+			long time = Frame.getLong(data, pos);
+			Integer link = Frame.getInt(data, pos + 8);
+			int kind = data[pos + 12];
+			int dir = data[pos + 13];
+			int length = Frame.getInt(data, pos + 14);
+			int offset = pos + TrafficRecorder.RECORD_HEADER;
+
+			//Truncated last record, the recorder did not get to close
+			if(length < 0 || offset + length > data.length) break;
+			pos = offset + length;
+
+			if(dir != direction) continue;
+
+			FrameReader reader;
+			switch(kind){
+			case TrafficRecorder.START:
+				reader = readers.get(link);
+				if(reader == null){
+					reader = new FrameReader(target.listener(link), 1024);
+					readers.put(link, reader);
+					result.links++;
+				}
+				reader.reset();
+				live.put(link, reader);
+				continue;
+
+			case TrafficRecorder.DROP:
+				result.drops++;
+				//Fall through
+			case TrafficRecorder.END:
+				live.remove(link);
+				continue;
+
+			case TrafficRecorder.DATA:
+				break;
+
+			default:
+				throw new IOException("Bad record kind " + kind + " in " + capture);
+			}
+
+			reader = live.get(link);
+			if(reader == null){
+				result.skippedBytes += length;
+				continue;
+			}
+
+			//Wait for the scaled time of the record
+			if(first < 0) first = time;
+			if(speed > 0){
+				long due = start + (long) ((time - first) / speed);
+				long wait = due - System.nanoTime();
+				if(wait > 0){
+					sleep(wait);
+				}else if(-wait > result.maxLagNanos){
+					result.maxLagNanos = -wait;
+				}
+			}
+
+			try{
+				reader.feed(data, offset, length);
+			}catch(ProtocolException e){
+				//Skip the rest of this stream until it starts again
+				result.errors++;
+				live.remove(link);
+			}
+			result.records++;
+			result.bytes += length;
+		}
+
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+
+	private byte[] load() throws IOException{
+
+		DataInputStream in = new DataInputStream(new FileInputStream(capture));
+		try{
+			byte[] data = new byte[(int) capture.length()];
+			in.readFully(data);
+
+			String magic = new String(data, 0, Math.min(data.length, TrafficRecorder.MAGIC.length()), "US-ASCII");
+			if(!TrafficRecorder.MAGIC.equals(magic)){
+				throw new IOException("Not a traffic capture: " + capture);
+			}
+			return data;
+		}finally{
+			in.close();
+		}
+	}
+
+
+	private static void sleep(long nanos) throws IOException{
+		try{
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Replay interrupted");
+		}
+	}
+
+
+	/**
+	 * Workstation benchmark: replay the inbound side of a capture into
+	 * listeners that only count frames
+	 */
+	public static void main(String[] args) throws IOException{
+
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+		final long[] frames = new long[1];
+
+		final FrameReader.Listener counter = new FrameReader.Listener(){
+			public boolean wants(int type, int topic){
+				return true;
+			}
+			public void onFrame(int type, int flags, int topic, byte[] payload, int offset, int length){
+				frames[0]++;
+			}
+		};
+
+		Result result = new TrafficReplayer(new File(args[0])).replay(new Target(){
+			public FrameReader.Listener listener(int link){
+				return counter;
+			}
+		}, TrafficRecorder.IN, speed);
+
+		double seconds = result.elapsedNanos / 1e9;
+		System.out.println(result.links + " links, " + result.records + " reads, " 
+				+ frames[0] + " frames, " + result.bytes + " bytes in " + seconds + " s ("
+				+ (long) (result.bytes / seconds) + " B/s, "
+				+ (long) (frames[0] / seconds) + " frames/s), max lag "
+				+ result.maxLagNanos / 1000 + " us, " + result.drops + " drops ("
+				+ result.skippedBytes + " bytes skipped), " + result.errors + " errors");
+	}
+}